@@ -0,0 +1,628 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+
+/*
+	Ahead of time translator.
+
+	Turns each ROM into Java source for a class that does the work of
+	Execute() for every instruction ControlFlow finds reachable from
+	0x200, one method per basic block, then compiles the classes and
+	packs them in a jar. A core that loads one of those ROMs with the
+	jar on the classpath runs the translation instead of decoding and
+	dispatching each opcode (see AotProgram), from the first frame on.
+
+	Only the starts of blocks are translated entry points. A JP V0
+	that lands anywhere else, code a ROM writes at run time and the
+	last few instructions of a frame that don't make up a whole block
+	fall back to the interpreter, which hands back to the translation
+	at the next block it knows.
+
+	The jar's manifest points at the jar holding the emulator, so
+	"java -jar c8-aot.jar [ROM]" plays a translated ROM.
+
+	Usage: java AotCompiler [-o jar] [-d directory] [directory, archive
+	or ROM ...]
+
+	Sources and classes are left in the -d directory (build/aot by
+	default) and the jar is build/c8-aot.jar unless -o says otherwise.
+*/
+public class AotCompiler {
+	private final RomImage image;
+	private final String name;
+	private final byte[] memory;
+	private final ControlFlow flow;
+	private final StringBuilder out = new StringBuilder();
+
+	private AotCompiler(RomImage image, String name) {
+		this.image = image;
+		this.name = name;
+
+		memory = new byte[EmulatorCore.PAGES * EmulatorCore.PAGE_SIZE];
+		System.arraycopy(EmulatorCore.FONT, 0, memory, 0,
+			EmulatorCore.FONT.length);
+		image.copyTo(memory, 0x200);
+
+		flow = ControlFlow.analyze(image);
+	}
+
+	/*
+		Java source for a ROM's translation. name only goes in a
+		comment.
+	*/
+	public static String translate(RomImage image, String name) {
+		AotCompiler compiler = new AotCompiler(image, name);
+		compiler.emitClass();
+
+		return compiler.out.toString();
+	}
+
+	/*
+		Compiles translations against the classpath this runs with,
+		putting the classes in a directory.
+	*/
+	public static void compile(List<Path> sources, Path classes)
+		throws IOException
+	{
+		JavaCompiler javac = ToolProvider.getSystemJavaCompiler();
+
+		if(javac == null)
+			throw new IOException("No Java compiler here, run this with a JDK");
+
+		Files.createDirectories(classes);
+		StandardJavaFileManager files = javac.getStandardFileManager(null, null, null);
+
+		try {
+			List<String> options = Arrays.asList("-d", classes.toString(),
+				"-cp", System.getProperty("java.class.path"), "-nowarn");
+
+			if(!javac.getTask(null, files, null, options, null,
+				files.getJavaFileObjectsFromPaths(sources)).call())
+			{
+				throw new IOException("Translations didn't compile");
+			}
+		} finally {
+			files.close();
+		}
+	}
+
+	/*
+		Packs compiled translations in a jar that runs the emulator.
+	*/
+	public static void pack(Path classes, List<String> classNames, Path jar)
+		throws IOException
+	{
+		Manifest manifest = new Manifest();
+		Attributes attributes = manifest.getMainAttributes();
+		attributes.put(Attributes.Name.MANIFEST_VERSION, "1.0");
+		attributes.put(Attributes.Name.MAIN_CLASS, "Emulator");
+
+		String emulator = classPathTo(jar);
+
+		if(emulator != null)
+			attributes.put(Attributes.Name.CLASS_PATH, emulator);
+
+		Path parent = jar.toAbsolutePath().getParent();
+		Files.createDirectories(parent);
+
+		OutputStream file = Files.newOutputStream(jar);
+
+		try {
+			JarOutputStream stream = new JarOutputStream(file, manifest);
+
+			for(String className : classNames) {
+				// The class and its blocks
+				DirectoryStream<Path> entries = Files.newDirectoryStream(classes,
+					className + "{,$*}.class");
+
+				try {
+					for(Path entry : entries) {
+						stream.putNextEntry(new JarEntry(entry.getFileName().toString()));
+						Files.copy(entry, stream);
+						stream.closeEntry();
+					}
+				} finally {
+					entries.close();
+				}
+			}
+
+			stream.finish();
+		} finally {
+			file.close();
+		}
+	}
+
+	/*
+		Where the emulator's classes are, relative to a jar, for its
+		Class-Path. null if they aren't anywhere on disk.
+	*/
+	private static String classPathTo(Path jar) {
+		CodeSource source = EmulatorCore.class.getProtectionDomain().getCodeSource();
+
+		if(source == null)
+			return null;
+
+		try {
+			Path emulator = Paths.get(source.getLocation().toURI()).toAbsolutePath();
+			Path from = jar.toAbsolutePath().getParent();
+			String relative = from.relativize(emulator).toString()
+				.replace(File.separatorChar, '/');
+
+			if(relative.isEmpty())
+				relative = ".";
+
+			return Files.isDirectory(emulator) ? relative + "/" : relative;
+		} catch(URISyntaxException e) {
+			return null;
+		}
+	}
+
+	public static void main(String[] args) {
+		Path jar = Paths.get("build", "c8-aot.jar");
+		Path directory = Paths.get("build", "aot");
+		List<String> paths = new ArrayList<String>();
+
+		for(int arg = 0; arg < args.length; arg++) {
+			if(args[arg].equals("-o") && arg + 1 < args.length)
+				jar = Paths.get(args[++arg]);
+			else if(args[arg].equals("-d") && arg + 1 < args.length)
+				directory = Paths.get(args[++arg]);
+			else
+				paths.add(args[arg]);
+		}
+
+		if(paths.isEmpty()) {
+			paths.add("roms");
+			paths.add("roms/testers");
+		}
+
+		long start = System.nanoTime();
+
+		// The same ROM can turn up more than once
+		Set<String> classNames = new LinkedHashSet<String>();
+		List<Path> sources = new ArrayList<Path>();
+
+		for(String path : paths) {
+			try {
+				RomSource source = RomSource.open(path);
+
+				try {
+					for(Path rom : source) {
+						RomImage image = RomImage.load(rom);
+						String className = AotProgram.className(image.getHash());
+
+						if(!classNames.add(className))
+							continue;
+
+						Files.createDirectories(directory);
+						Path file = directory.resolve(className + ".java");
+						Files.write(file, translate(image, source.nameOf(rom))
+							.getBytes(StandardCharsets.UTF_8));
+						sources.add(file);
+
+						System.out.println(String.format("%-24s %s",
+							source.nameOf(rom), className));
+					}
+				} finally {
+					source.close();
+				}
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+			} catch(UncheckedIOException e) {
+				System.out.println(path + ": " + e.getCause());
+			}
+		}
+
+		if(sources.isEmpty()) {
+			System.out.println("Nothing to translate");
+			System.exit(1);
+		}
+
+		try {
+			compile(sources, directory.resolve("classes"));
+			pack(directory.resolve("classes"),
+				new ArrayList<String>(classNames), jar);
+		} catch(IOException e) {
+			System.out.println(e.getMessage());
+			System.exit(1);
+		}
+
+		System.out.println(String.format("%d ROMs translated into %s in %.3f s",
+			classNames.size(), jar, (System.nanoTime() - start) / 1e9));
+	}
+
+	private void emitClass() {
+		String className = AotProgram.className(image.getHash());
+
+		out.append("import java.util.Arrays;\n\n");
+		out.append("/*\n");
+		out.append("\tTranslation of ").append(name).append(" made by ");
+		out.append("AotCompiler, don't edit.\n");
+		out.append("*/\n");
+		out.append("final class ").append(className);
+		out.append(" extends AotProgram {\n");
+
+		// Constructor with the hash and the code bitmap
+		long[] code = new long[memory.length / 64];
+
+		for(ControlFlow.Block block : flow.getBlocks()) {
+			for(int addr = block.start; addr <= block.end + 1; addr++)
+				code[addr >> 6] |= 1L << addr;
+		}
+
+		out.append("\t").append(className).append("() {\n");
+		out.append("\t\tsuper(\"").append(image.getHash());
+		out.append("\", new long[] {");
+
+		for(int word = 0; word < code.length; word++) {
+			out.append((word % 4 == 0) ? "\n\t\t\t" : " ");
+			out.append(String.format("0x%016XL", code[word]));
+
+			if(word < code.length - 1)
+				out.append(",");
+		}
+
+		out.append("\n\t\t});\n");
+
+		// One object per block rather than one switch over them
+		// all: the JIT would inline every block into the switch and
+		// recompile the lot each time a block first runs
+		for(ControlFlow.Block block : flow.getBlocks()) {
+			out.append(String.format("\n\t\tblocks[0x%03X] = new Block() {\n",
+				block.start));
+			out.append("\t\t\tint run(EmulatorCore core, byte[] V, int left) {\n");
+			out.append(String.format("\t\t\t\treturn at%03X(core, V, left);\n",
+				block.start));
+			out.append("\t\t\t}\n");
+			out.append("\t\t};\n");
+		}
+
+		out.append("\t}\n");
+
+		for(ControlFlow.Block block : flow.getBlocks())
+			emitBlock(block);
+
+		out.append("}\n");
+	}
+
+	private void emitBlock(ControlFlow.Block block) {
+		int length = (block.end - block.start) / 2 + 1;
+
+		out.append(String.format("\n\t// %s\n", block));
+		out.append(String.format("\tprivate static int at%03X(", block.start));
+		out.append("EmulatorCore core, byte[] V, int left) {\n");
+
+		if(isWaitLoop(block.start)) {
+			out.append("\t\tif(core.skipTimerWaits) {\n");
+			out.append("\t\t\tint skipped = core.skipTimerWait(left);\n\n");
+			out.append("\t\t\tif(skipped > 0)\n");
+			out.append("\t\t\t\treturn skipped;\n");
+			out.append("\t\t}\n\n");
+		}
+
+		out.append("\t\tif(left < ").append(length).append(")\n");
+		out.append("\t\t\treturn 0;\n\n");
+
+		for(int i = 0; i < length; i++) {
+			int address = block.start + i * 2;
+			Instruction inst = decodeAt(address);
+
+			out.append(String.format("\t\t// %03X: %s\n", address,
+				Disassembler.format(inst.opcode & 0xFFFF)));
+			emitInstruction(block, inst, address, i);
+		}
+
+		Instruction last = decodeAt(block.end);
+
+		if(!setsPC(last))
+			out.append(String.format("\t\tcore.PC = 0x%03X;\n", block.end + 2));
+
+		emitCounts(block, length, "\t\t");
+		out.append("\n\t\treturn ").append(length).append(";\n");
+		out.append("\t}\n");
+	}
+
+	/*
+		Whether the core's timer wait skipping can apply at the top
+		of a block. The core checks the loop properly when it runs.
+	*/
+	private boolean isWaitLoop(int address) {
+		Instruction first = decodeAt(address);
+
+		if(first.type == Instruction.JP)
+			return first.nnn == address;
+
+		if(first.type != Instruction.LD_VX_DT || address + 5 >= memory.length)
+			return false;
+
+		Instruction jump = decodeAt(address + 4);
+
+		return jump.type == Instruction.JP && jump.nnn == address;
+	}
+
+	/*
+		Whether an instruction sets PC itself.
+	*/
+	private static boolean setsPC(Instruction inst) {
+		switch(inst.type) {
+		case Instruction.JP:
+		case Instruction.CALL:
+		case Instruction.RET:
+		case Instruction.JP_V0:
+		case Instruction.SE_BYTE:
+		case Instruction.SNE_BYTE:
+		case Instruction.SE_REG:
+		case Instruction.SNE_REG:
+		case Instruction.SKP:
+		case Instruction.SKNP:
+		case Instruction.SYS:
+		case Instruction.KEY_NOP:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+		Adds the first count instructions of a block to the core's
+		counts by family, when it's counting.
+	*/
+	private void emitCounts(ControlFlow.Block block, int count, String indent) {
+		long[] families = new long[16];
+
+		for(int i = 0; i < count; i++)
+			families[(decodeAt(block.start + i * 2).opcode >> 12) & 0xF]++;
+
+		out.append(indent).append("if(core.metrics != null) {\n");
+		out.append(indent).append("\tlong[] counts = core.familyCounts;\n\n");
+
+		for(int family = 0; family < families.length; family++) {
+			if(families[family] != 0) {
+				out.append(indent).append(String.format(
+					"\tcounts[0x%X] += %d;\n", family, families[family]));
+			}
+		}
+
+		out.append(indent).append("}\n");
+	}
+
+	/*
+		Source doing what Execute() does for one instruction. index
+		is where it is in the block.
+	*/
+	private void emitInstruction(ControlFlow.Block block, Instruction inst,
+		int address, int index)
+	{
+		String vx = String.format("V[0x%X]", inst.x);
+		String vy = String.format("V[0x%X]", inst.y);
+		String kk = String.format("(byte)0x%02X", inst.kk);
+		String next = String.format("0x%03X", address + 2);
+		String skip = String.format("0x%03X", address + 4);
+
+		// Instructions that can throw leave PC on themselves, as the
+		// interpreter would
+		String here = (index == 0) ? "" :
+			String.format("\t\tcore.PC = 0x%03X;\n", address);
+
+		switch(inst.type) {
+		case Instruction.CLS:
+			line("Arrays.fill(core.graphics, 0);");
+			line("core.dirtyRows = -1;");
+			break;
+		case Instruction.RET:
+			out.append(here);
+			line("core.SP--;");
+			line("core.PC = core.stack[core.SP] + 2;");
+			break;
+		case Instruction.SYS:
+		case Instruction.KEY_NOP:
+			line(String.format("core.PC = 0x%03X;", address));
+			break;
+		case Instruction.JP:
+			line(String.format("core.PC = 0x%03X;", inst.nnn));
+			break;
+		case Instruction.CALL:
+			out.append(here);
+			line(String.format("core.stack[core.SP] = 0x%03X;", address));
+			line("core.SP++;");
+			line(String.format("core.PC = 0x%03X;", inst.nnn));
+			break;
+		case Instruction.SE_BYTE:
+			line("core.PC = (" + vx + " == " + kk + ") ? " + skip + " : " + next + ";");
+			break;
+		case Instruction.SNE_BYTE:
+			line("core.PC = (" + vx + " != " + kk + ") ? " + skip + " : " + next + ";");
+			break;
+		case Instruction.SE_REG:
+			line("core.PC = (" + vx + " == " + vy + ") ? " + skip + " : " + next + ";");
+			break;
+		case Instruction.SNE_REG:
+			line("core.PC = (" + vx + " == " + vy + ") ? " + next + " : " + skip + ";");
+			break;
+		case Instruction.LD_BYTE:
+			line(vx + " = " + kk + ";");
+			break;
+		case Instruction.ADD_BYTE:
+			line(vx + " = (byte)(" + vx + " + " + inst.kk + ");");
+			break;
+		case Instruction.LD_REG:
+			line(vx + " = " + vy + ";");
+			break;
+		case Instruction.OR:
+			line(vx + " = (byte)(" + vx + " | " + vy + ");");
+			break;
+		case Instruction.AND:
+			line(vx + " = (byte)(" + vx + " & " + vy + ");");
+			break;
+		case Instruction.XOR:
+			line(vx + " ^= " + vy + ";");
+			break;
+		case Instruction.ADD_REG:
+			// The carry is worked out from the sum already stored
+			line(vx + " = (byte)(" + vx + " + " + vy + ");");
+			line("V[0xF] = (byte)((" + vx + " + " + vy + " > 255) ? 1 : 0);");
+			break;
+		case Instruction.SUB:
+			line("V[0xF] = (byte)((" + vx + " > " + vy + ") ? 1 : 0);");
+			line(vx + " = (byte)(" + vx + " - " + vy + ");");
+			break;
+		case Instruction.SHR:
+			line("V[0xF] = (byte)(((" + vx + " & 0x1) == 1) ? 1 : 0);");
+			line(vx + " >>= 1;");
+			break;
+		case Instruction.SUBN:
+			line("V[0xF] = (byte)((" + vy + " > " + vx + ") ? 1 : 0);");
+			line(vx + " = (byte)(" + vy + " - " + vx + ");");
+			break;
+		case Instruction.SHL:
+			line("V[0xF] = (byte)((((" + vx + " & 0x80) >> 7) == 1) ? 1 : 0);");
+			line(vx + " <<= 1;");
+			break;
+		case Instruction.ALU_NOP:
+		case Instruction.MISC_NOP:
+			break;
+		case Instruction.LD_I:
+			line(String.format("core.I = (short)0x%03X;", inst.nnn));
+			break;
+		case Instruction.JP_V0:
+			// Lands back in the translation only at a block start
+			line(String.format("core.PC = (short)(0x%03X + V[0x0]);", inst.nnn));
+			break;
+		case Instruction.RND:
+			line(vx + " = (byte)(core.nextRandom(255) & " + inst.kk + ");");
+			break;
+		case Instruction.DRW:
+			out.append(here);
+			line(String.format("core.draw(0x%X, 0x%X, %d);", inst.x, inst.y, inst.n));
+			break;
+		case Instruction.SKP:
+			line("core.PC = core.isHeld(" + vx + ") ? " + skip + " : " + next + ";");
+			break;
+		case Instruction.SKNP:
+			line("core.PC = core.isHeld(" + vx + ") ? " + next + " : " + skip + ";");
+			break;
+		case Instruction.LD_VX_DT:
+			line(vx + " = (byte)core.delay_timer;");
+			break;
+		case Instruction.LD_VX_K:
+			// Stops here until a key is let go of, counting itself
+			line("if(core.released == 0) {");
+			line("\tcore.waitingForKey = true;");
+			line(String.format("\tcore.PC = 0x%03X;", address));
+			emitExit(block, index + 1);
+			line("}");
+			line(vx + " = (byte)Integer.numberOfTrailingZeros(core.released);");
+			line("core.released &= core.released - 1;");
+			break;
+		case Instruction.LD_DT_VX:
+			line("core.delay_timer = " + vx + " & 0xFF;");
+			break;
+		case Instruction.LD_ST_VX:
+			line("core.sound_timer = " + vx + " & 0xFF;");
+			break;
+		case Instruction.ADD_I_VX:
+			line("core.I = (short)(core.I + " + vx + ");");
+			break;
+		case Instruction.LD_F_VX:
+			line("core.I = (short)(" + vx + " * 5);");
+			break;
+		case Instruction.LD_B_VX:
+			out.append(here);
+			line("core.memory[core.I] = (byte)((" + vx + " & 0xFF) / 100);");
+			line("core.memory[core.I + 1] = (byte)(((" + vx + " & 0xFF) / 10) % 10);");
+			line("core.memory[core.I + 2] = (byte)((" + vx + " & 0xFF) % 10);");
+			line("core.invalidate(core.I, 3);");
+			emitWriteCheck(block, address, index);
+			break;
+		case Instruction.LD_MEM_VX:
+			out.append(here);
+			line(String.format("for(int counter = 0; counter <= 0x%X; counter++)", inst.x));
+			line("\tcore.memory[core.I + counter] = V[counter];");
+			line(String.format("core.invalidate(core.I, %d);", inst.x + 1));
+			emitWriteCheck(block, address, index);
+			break;
+		case Instruction.LD_VX_MEM:
+			out.append(here);
+			line(String.format("for(int counter = 0; counter <= 0x%X; counter++)", inst.x));
+			line("\tV[counter] = core.memory[core.I + counter];");
+			break;
+		default:
+			throw new IllegalStateException("No translation for " +
+				Disassembler.format(inst.opcode & 0xFFFF));
+		}
+
+		out.append("\n");
+	}
+
+	/*
+		After a write that isn't the last instruction of its block:
+		if it hit translated code, the rest of the block may not be
+		what's in memory any more, so the interpreter takes over.
+	*/
+	private void emitWriteCheck(ControlFlow.Block block, int address, int index) {
+		if(address == block.end)
+			return;
+
+		line("if(core.aot == null) {");
+		line(String.format("\tcore.PC = 0x%03X;", address + 2));
+		emitExit(block, index + 1);
+		line("}");
+	}
+
+	/*
+		Leaves a block early, done instructions into it.
+	*/
+	private void emitExit(ControlFlow.Block block, int done) {
+		emitCounts(block, done, "\t\t\t");
+		out.append("\t\t\treturn ").append(done).append(";\n");
+	}
+
+	private void line(String text) {
+		out.append("\t\t").append(text).append("\n");
+	}
+
+	private Instruction decodeAt(int address) {
+		return Instruction.decode(((memory[address] & 0xFF) << 8) |
+			(memory[address + 1] & 0xFF));
+	}
+}
@@ -0,0 +1,185 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.lang.reflect.InvocationTargetException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+	A ROM translated ahead of time by AotCompiler.
+
+	Generated classes extend this and are named Aot_ followed by the
+	first 16 hex digits of the ROM's hash, so a core loading a ROM
+	finds its translation just by having the jar on the classpath.
+	They fill in a Block for the start of every basic block.
+
+	run() carries on from PC for as long as PC lands on the start of a
+	block the translation knows about and the next block fits in the
+	budget. Everything else (addresses only reached through a JP V0,
+	code written at run time, the tail of a frame) is left to the
+	interpreter. A core stops using its translation as soon as
+	anything writes over the code it was made from.
+*/
+abstract class AotProgram {
+	/*
+		A translated basic block. Generated classes make these.
+	*/
+	abstract static class Block {
+		/*
+			Runs the block if it fits in left instructions. Returns
+			the number of instructions run, 0 if it didn't fit.
+			Leaves PC wherever the block went.
+		*/
+		abstract int run(EmulatorCore core, byte[] V, int left);
+	}
+
+	// Marks ROMs looked up that have no translation
+	private static final AotProgram NONE = new AotProgram(null, null) {
+	};
+
+	private static final ConcurrentMap<String, AotProgram> LOADED =
+		new ConcurrentHashMap<String, AotProgram>();
+
+	// Hash of the ROM translated
+	final String hash;
+
+	// One bit per byte of memory holding translated code
+	final long[] code;
+
+	// Memory as the translated code expects it, only the code bytes
+	// are looked at
+	byte[] expected;
+
+	// Translated blocks by their start address
+	final Block[] blocks = new Block[EmulatorCore.PAGES * EmulatorCore.PAGE_SIZE];
+
+	AotProgram(String hash, long[] code) {
+		this.hash = hash;
+		this.code = code;
+	}
+
+	/*
+		Runs translated blocks from PC until one isn't known or
+		doesn't fit in the budget, the core waits for a key, or code
+		is written over. Returns the number of instructions run.
+	*/
+	final int run(EmulatorCore core, byte[] V, int budget) {
+		int executed = 0;
+
+		while(true) {
+			int pc = core.PC;
+			Block block = (pc >= 0 && pc < blocks.length) ? blocks[pc] : null;
+
+			if(block == null)
+				return executed;
+
+			int ran = block.run(core, V, budget - executed);
+
+			if(ran == 0)
+				return executed;
+
+			executed += ran;
+
+			if(core.waitingForKey || core.aot != this)
+				return executed;
+		}
+	}
+
+	/*
+		Whether any byte in the range is translated code.
+	*/
+	boolean overlapsCode(int address, int length) {
+		int start = Math.max(address, 0);
+		int end = Math.min(address + length, code.length * 64);
+
+		for(int addr = start; addr < end; addr++) {
+			if((code[addr >> 6] & (1L << addr)) != 0)
+				return true;
+		}
+
+		return false;
+	}
+
+	/*
+		Whether the code in memory is what was translated.
+	*/
+	boolean matches(byte[] memory) {
+		for(int addr = 0; addr < memory.length; addr++) {
+			if((code[addr >> 6] & (1L << addr)) != 0 &&
+				memory[addr] != expected[addr])
+			{
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/*
+		The translation of a ROM on the classpath, or null if there
+		isn't one.
+	*/
+	static AotProgram forImage(RomImage image) {
+		AotProgram program = LOADED.get(image.getHash());
+
+		if(program == null) {
+			program = load(image);
+			LOADED.putIfAbsent(image.getHash(), program);
+		}
+
+		return (program == NONE) ? null : program;
+	}
+
+	private static AotProgram load(RomImage image) {
+		try {
+			Class<?> type = Class.forName(className(image.getHash()));
+			AotProgram program = (AotProgram)type.getDeclaredConstructor()
+				.newInstance();
+
+			// Two ROMs can share the first 16 digits
+			if(!image.getHash().equals(program.hash))
+				return NONE;
+
+			program.expected = new byte[EmulatorCore.PAGES * EmulatorCore.PAGE_SIZE];
+			System.arraycopy(EmulatorCore.FONT, 0, program.expected, 0,
+				EmulatorCore.FONT.length);
+			image.copyTo(program.expected, 0x200);
+
+			return program;
+		} catch(ClassNotFoundException e) {
+			return NONE;
+		} catch(InvocationTargetException e) {
+			System.err.println("Can't load translation of " +
+				image.getHash() + ": " + e.getCause());
+			return NONE;
+		} catch(ReflectiveOperationException e) {
+			System.err.println("Can't load translation of " +
+				image.getHash() + ": " + e);
+			return NONE;
+		}
+	}
+
+	/*
+		Name of the class a ROM with the passed hash translates to.
+	*/
+	static String className(String hash) {
+		return "Aot_" + hash.substring(0, 16);
+	}
+}
@@ -0,0 +1,35 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/*
+	Where the core's sound goes.
+
+	The core calls frame() once for every frame it runs, saying
+	whether the beeper is on for that frame. Sinks turn that into
+	SquareWave.FRAME_SAMPLES samples each: played out loud by Sound,
+	written to a file by WavAudioSink, or dropped by NullAudioSink.
+*/
+public interface AudioSink extends Closeable {
+	void frame(boolean beeping);
+
+	void close() throws IOException;
+}
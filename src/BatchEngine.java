@@ -0,0 +1,826 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.util.Arrays;
+
+/*
+	Steps many instances of one ROM together.
+
+	The registers of every instance (lane) are kept as a
+	structure of arrays: V0 of every lane in one array, V1 in the next
+	and so on, and likewise PC, I, SP and the timers. Lanes at the
+	same instruction run it together: the instruction is fetched and
+	dispatched once, then a tight loop applies it to each lane's
+	registers. See run() for how lanes that branched different ways
+	are brought back together.
+
+	VRAM is kept the same way, row 0 of every lane in one array and
+	so on. Memory and the stack stay one array per lane. Keys come
+	from a key source per lane, sound goes nowhere.
+
+	Usage: java BatchEngine [-lanes N] [-frames N] [-ipf N] ROM
+*/
+public class BatchEngine {
+	static final int DEFAULT_LANES = 1024;
+	static final int DEFAULT_FRAMES = 600;
+
+	private final RomImage image;
+	private final int lanes;
+
+	// Memory with the font and ROM loaded, before any lane has run
+	private final byte[] initial = new byte[EmulatorCore.PAGES *
+		EmulatorCore.PAGE_SIZE];
+
+	// Registers, V[register][lane] and the rest [lane]
+	final byte[][] V = new byte[16][];
+	final int[] PC, I, SP, delayTimer, soundTimer;
+	final long[] seed;
+
+	// Keys held this frame and let go of since, as in EmulatorCore
+	final int[] keys, released;
+	final boolean[] waitingForKey;
+
+	// Instructions each lane has left to run this frame, and the
+	// lanes the next instruction runs on
+	private final int[] left, group;
+	private final int[] one = new int[1];
+
+	// The lanes in group still running the ROM's code, when the page
+	// has been written. group itself is left alone, run() puts its
+	// lanes back in the lists afterwards.
+	private final int[] unchanged;
+
+	// Lanes with instructions left by PC: the first lane at each PC,
+	// the lane after each lane, and one bit per PC with any lanes
+	private final int[] first = new int[EmulatorCore.PAGES *
+		EmulatorCore.PAGE_SIZE];
+	private final int[] next;
+	private final long[] pending = new long[first.length / 64];
+
+	final byte[][] memory;
+	final long[][] graphics;
+	final int[][] stack;
+
+	private final KeySource[] keySources;
+
+	// Memory pages any lane has written. Instructions on the others
+	// are the ROM image's and the same for every lane.
+	private int writtenPages;
+
+	private long frame;
+
+	public BatchEngine(RomImage image, int lanes) {
+		this.image = image;
+		this.lanes = lanes;
+
+		for(int register = 0; register < 16; register++)
+			V[register] = new byte[lanes];
+
+		PC = new int[lanes];
+		I = new int[lanes];
+		SP = new int[lanes];
+		delayTimer = new int[lanes];
+		soundTimer = new int[lanes];
+		seed = new long[lanes];
+		keys = new int[lanes];
+		released = new int[lanes];
+		waitingForKey = new boolean[lanes];
+		left = new int[lanes];
+		group = new int[lanes];
+		unchanged = new int[lanes];
+		next = new int[lanes];
+		Arrays.fill(first, -1);
+		memory = new byte[lanes][];
+		graphics = new long[FrameBuffer.HEIGHT][lanes];
+		stack = new int[lanes][16];
+		keySources = new KeySource[lanes];
+
+		System.arraycopy(EmulatorCore.FONT, 0, initial, 0,
+			EmulatorCore.FONT.length);
+		image.copyTo(initial, 0x200);
+
+		for(int lane = 0; lane < lanes; lane++) {
+			memory[lane] = initial.clone();
+
+			PC[lane] = 0x200;
+			seed[lane] = EmulatorCore.scramble(567765);
+		}
+	}
+
+	public int size() {
+		return lanes;
+	}
+
+	/*
+		Seeds a lane's random number generator, see
+		EmulatorCore.setSeed(). Lanes with different seeds soon stop
+		running in lockstep.
+	*/
+	public void setSeed(int lane, long value) {
+		seed[lane] = EmulatorCore.scramble(value);
+	}
+
+	/*
+		Sets where a lane's keys come from, null for none.
+	*/
+	public void setKeySource(int lane, KeySource source) {
+		keySources[lane] = source;
+	}
+
+	public long getFrame() {
+		return frame;
+	}
+
+	/*
+		Runs a frame on every lane, exactly as EmulatorCore.runFrame()
+		would on each. Returns the instructions run over all lanes.
+	*/
+	public long runFrame(int ipf) {
+		for(int lane = 0; lane < lanes; lane++) {
+			if(keySources[lane] != null) {
+				int state = keySources[lane].poll(frame) & 0xFFFF;
+
+				released[lane] = keys[lane] & ~state;
+				keys[lane] = state;
+			}
+
+			if(waitingForKey[lane] && released[lane] != 0)
+				waitingForKey[lane] = false;
+		}
+
+		long executed = run(ipf);
+
+		for(int lane = 0; lane < lanes; lane++) {
+			if(delayTimer[lane] > 0)
+				delayTimer[lane]--;
+			if(soundTimer[lane] > 0)
+				soundTimer[lane]--;
+		}
+		frame++;
+
+		return executed;
+	}
+
+	/*
+		Runs up to budget instructions on every lane that isn't
+		waiting for a key. Returns the instructions run.
+
+		Each step takes the lanes at the lowest PC and runs its
+		instruction on all of them together. Lanes that went
+		different ways on a branch are behind or ahead of each other
+		until the ones behind catch up where the paths join, and from
+		there they run together again.
+
+		Lanes are kept in a list per PC, with a bit per PC that has
+		any, so finding the next lanes to run doesn't mean looking at
+		every lane.
+	*/
+	private long run(int budget) {
+		for(int lane = 0; lane < lanes; lane++) {
+			if(waitingForKey[lane])
+				continue;
+
+			left[lane] = budget;
+			enqueue(lane);
+		}
+
+		long executed = 0;
+
+		for(int word = 0; word < pending.length; word++) {
+			while(pending[word] != 0) {
+				int pc = word * 64 + Long.numberOfTrailingZeros(pending[word]);
+				int count = 0;
+
+				for(int lane = first[pc]; lane >= 0; lane = next[lane])
+					group[count++] = lane;
+
+				pending[word] &= pending[word] - 1;
+				first[pc] = -1;
+
+				execute(pc, count);
+				executed += count;
+
+				// Lanes go back in at their new PC, which may be
+				// behind this one
+				for(int k = 0; k < count; k++) {
+					int lane = group[k];
+
+					if(--left[lane] > 0 && !waitingForKey[lane]) {
+						enqueue(lane);
+						word = Math.min(word, PC[lane] >> 6);
+					}
+				}
+			}
+		}
+
+		return executed;
+	}
+
+	private void enqueue(int lane) {
+		int pc = PC[lane];
+
+		next[lane] = first[pc];
+		first[pc] = lane;
+		pending[pc >> 6] |= 1L << pc;
+	}
+
+	/*
+		Runs the instruction at pc on the first count lanes in group.
+	*/
+	private void execute(int pc, int count) {
+		if(!isWritten(pc)) {
+			execute(fetch(pc, -1), group, count);
+			return;
+		}
+
+		// Something in the page has been written, most likely data
+		// next to the code. Lanes whose code is still the ROM's run
+		// together, the rest one at a time.
+		int same = 0;
+
+		for(int k = 0; k < count; k++) {
+			int lane = group[k];
+
+			if(memory[lane][pc] == initial[pc] &&
+				memory[lane][pc + 1] == initial[pc + 1])
+			{
+				unchanged[same++] = lane;
+			}
+			else {
+				one[0] = lane;
+				execute(fetch(pc, lane), one, 1);
+			}
+		}
+
+		if(same > 0)
+			execute(fetch(pc, -1), unchanged, same);
+	}
+
+	private boolean isWritten(int address) {
+		return isWritten(address, 2);
+	}
+
+	private boolean isWritten(int address, int length) {
+		return (writtenPages & pagesOf(address, length)) != 0;
+	}
+
+	/*
+		One bit per memory page in a range.
+	*/
+	private static int pagesOf(int address, int length) {
+		int first = address >> EmulatorCore.PAGE_SHIFT;
+		int last = (address + Math.max(length, 1) - 1) >> EmulatorCore.PAGE_SHIFT;
+
+		return (2 << last) - (1 << first);
+	}
+
+	/*
+		The instruction at pc in a lane's memory or, for lane -1, in
+		memory as the ROM was loaded.
+	*/
+	private Instruction fetch(int pc, int lane) {
+		byte[] code = (lane < 0) ? initial : memory[lane];
+
+		if(lane < 0 || !isWritten(pc)) {
+			Instruction inst = image.decoded[pc >> EmulatorCore.PAGE_SHIFT]
+				[pc & (EmulatorCore.PAGE_SIZE - 1)];
+
+			if(inst != null)
+				return inst;
+		}
+
+		return Instruction.decode(((code[pc] & 0xFF) << 8) |
+			(code[pc + 1] & 0xFF));
+	}
+
+	/*
+		Runs an instruction on the first count lanes listed in group,
+		with the same results as EmulatorCore.Execute() on each.
+	*/
+	private void execute(Instruction inst, int[] group, int count) {
+		int x = inst.x;
+		int y = inst.y;
+		int kk = inst.kk;
+		int nnn = inst.nnn;
+
+		byte[] vx = V[x], vy = V[y], vf = V[0xF];
+
+		switch(inst.type) {
+		case Instruction.CLS:
+			for(int row = 0; row < FrameBuffer.HEIGHT; row++) {
+				for(int k = 0; k < count; k++)
+					graphics[row][group[k]] = 0;
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.RET:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				SP[lane] = (byte)(SP[lane] - 1);
+				PC[lane] = stack[lane][SP[lane]] + 2;
+			}
+			break;
+
+		case Instruction.SYS:
+		case Instruction.KEY_NOP:
+			// Don't move PC
+			break;
+
+		case Instruction.JP:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				PC[lane] = nnn;
+			}
+			break;
+
+		case Instruction.CALL:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				stack[lane][SP[lane]] = PC[lane];
+				SP[lane] = (byte)(SP[lane] + 1);
+				PC[lane] = nnn;
+			}
+			break;
+
+		case Instruction.SE_BYTE:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				PC[lane] += (vx[lane] == (byte)kk) ? 4 : 2;
+			}
+			break;
+
+		case Instruction.SNE_BYTE:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				PC[lane] += (vx[lane] != (byte)kk) ? 4 : 2;
+			}
+			break;
+
+		case Instruction.SE_REG:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				PC[lane] += (vx[lane] == vy[lane]) ? 4 : 2;
+			}
+			break;
+
+		case Instruction.SNE_REG:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				PC[lane] += (vx[lane] != vy[lane]) ? 4 : 2;
+			}
+			break;
+
+		case Instruction.LD_BYTE:
+			for(int k = 0; k < count; k++)
+				vx[group[k]] = (byte)kk;
+			advance(group, count);
+			break;
+
+		case Instruction.ADD_BYTE:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				vx[lane] = (byte)(vx[lane] + kk);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.LD_REG:
+			for(int k = 0; k < count; k++)
+				vx[group[k]] = vy[group[k]];
+			advance(group, count);
+			break;
+
+		case Instruction.OR:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				vx[lane] = (byte)(vx[lane] | vy[lane]);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.AND:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				vx[lane] = (byte)(vx[lane] & vy[lane]);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.XOR:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				vx[lane] = (byte)(vx[lane] ^ vy[lane]);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.ADD_REG:
+			// The carry test in Execute() never passes
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				vx[lane] = (byte)(vx[lane] + vy[lane]);
+				vf[lane] = 0;
+			}
+			advance(group, count);
+			break;
+
+		// VF is set before Vx here, as in Execute(), which matters
+		// when x or y is F
+		case Instruction.SUB:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				vf[lane] = (vx[lane] > vy[lane]) ? (byte)1 : 0;
+				vx[lane] = (byte)(vx[lane] - vy[lane]);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.SHR:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				vf[lane] = (byte)(vx[lane] & 0x1);
+				vx[lane] = (byte)(vx[lane] >> 1);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.SUBN:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				vf[lane] = (vy[lane] > vx[lane]) ? (byte)1 : 0;
+				vx[lane] = (byte)(vy[lane] - vx[lane]);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.SHL:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				vf[lane] = (byte)((vx[lane] >> 7) & 0x1);
+				vx[lane] = (byte)(vx[lane] << 1);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.ALU_NOP:
+		case Instruction.MISC_NOP:
+			advance(group, count);
+			break;
+
+		case Instruction.LD_I:
+			for(int k = 0; k < count; k++)
+				I[group[k]] = (short)nnn;
+			advance(group, count);
+			break;
+
+		case Instruction.JP_V0:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				PC[lane] = (short)(nnn + V[0][lane]);
+			}
+			break;
+
+		case Instruction.RND:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				vx[lane] = (byte)(nextRandom(lane, 255) & kk);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.SKP:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				PC[lane] += isHeld(lane, vx[lane]) ? 4 : 2;
+			}
+			break;
+
+		case Instruction.SKNP:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				PC[lane] += isHeld(lane, vx[lane]) ? 2 : 4;
+			}
+			break;
+
+		case Instruction.LD_VX_DT:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				vx[lane] = (byte)delayTimer[lane];
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.LD_VX_K:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				if(released[lane] == 0) {
+					waitingForKey[lane] = true;
+					continue;
+				}
+
+				vx[lane] = (byte)Integer.numberOfTrailingZeros(released[lane]);
+				released[lane] &= released[lane] - 1;
+				PC[lane] += 2;
+			}
+			break;
+
+		case Instruction.LD_DT_VX:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				delayTimer[lane] = vx[lane] & 0xFF;
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.LD_ST_VX:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				soundTimer[lane] = vx[lane] & 0xFF;
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.ADD_I_VX:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				I[lane] = (short)(I[lane] + vx[lane]);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.LD_F_VX:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				I[lane] = (short)(vx[lane] * 5);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.LD_VX_MEM:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				for(int counter = 0; counter <= x; counter++)
+					V[counter][lane] = memory[lane][I[lane] + counter];
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.DRW:
+			for(int k = 0; k < count; k++)
+				draw(group[k], x, y, inst.n);
+			advance(group, count);
+			break;
+
+		case Instruction.LD_B_VX:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+				int value = vx[lane] & 0xFF;
+
+				memory[lane][I[lane]] = (byte)(value / 100);
+				memory[lane][I[lane] + 1] = (byte)((value / 10) % 10);
+				memory[lane][I[lane] + 2] = (byte)(value % 10);
+				written(I[lane], 3);
+			}
+			advance(group, count);
+			break;
+
+		case Instruction.LD_MEM_VX:
+			for(int k = 0; k < count; k++) {
+				int lane = group[k];
+
+				for(int counter = 0; counter <= x; counter++)
+					memory[lane][I[lane] + counter] = V[counter][lane];
+				written(I[lane], x + 1);
+			}
+			advance(group, count);
+			break;
+		}
+	}
+
+	private void advance(int[] group, int count) {
+		for(int k = 0; k < count; k++)
+			PC[group[k]] += 2;
+	}
+
+	/*
+		Dxyn for one lane, as in Execute().
+	*/
+	private void draw(int lane, int x, int y, int n) {
+		// VF is cleared before Vx and Vy are read
+		V[0xF][lane] = 0;
+
+		int xLocation = V[x][lane] & 0xFF;
+		int yLocation = V[y][lane] & 0xFF;
+		int address = I[lane];
+
+		// Sprites nobody has written over are read from the one copy
+		byte[] sprite = isWritten(address, n) ? memory[lane] : initial;
+
+		for(int lineY = 0; lineY < n; lineY++) {
+			int pixel = sprite[address + lineY];
+
+			int row = yLocation + lineY;
+			if(row > 31)
+				continue;
+
+			long bits = ((long)(pixel & 0xFF)) << 56;
+			bits = (xLocation > 63) ? 0 : (bits >>> xLocation);
+
+			if((graphics[row][lane] & bits) != 0)
+				V[0xF][lane] = 1;
+			graphics[row][lane] ^= bits;
+		}
+	}
+
+	/*
+		Marks the pages of a memory range as written by some lane.
+	*/
+	private void written(int address, int length) {
+		writtenPages |= pagesOf(address, length);
+	}
+
+	private boolean isHeld(int lane, byte vx) {
+		int key = vx & 0xFF;
+
+		return key < 16 && (keys[lane] & (1 << key)) != 0;
+	}
+
+	/*
+		EmulatorCore.nextRandom() on a lane's seed.
+	*/
+	private int nextRandom(int lane, int bound) {
+		int bits, value;
+
+		do {
+			seed[lane] = (seed[lane] * 0x5DEECE66DL + 0xBL) &
+				((1L << 48) - 1);
+			bits = (int)(seed[lane] >>> 17);
+			value = bits % bound;
+		} while(bits - value + (bound - 1) < 0);
+
+		return value;
+	}
+
+	/*
+		Takes a snapshot of one lane, which can be restored into an
+		EmulatorCore running the same ROM to carry on with it alone or
+		look at its display.
+	*/
+	public Snapshot snapshot(int lane) {
+		Snapshot snap = new Snapshot();
+		snap.pages = new byte[EmulatorCore.PAGES][];
+
+		for(int page = 0; page < EmulatorCore.PAGES; page++) {
+			snap.pages[page] = Arrays.copyOfRange(memory[lane],
+				page * EmulatorCore.PAGE_SIZE,
+				(page + 1) * EmulatorCore.PAGE_SIZE);
+		}
+
+		snap.V = new byte[16];
+		for(int register = 0; register < 16; register++)
+			snap.V[register] = V[register][lane];
+
+		snap.stack = stack[lane].clone();
+		snap.graphics = new long[FrameBuffer.HEIGHT];
+		for(int row = 0; row < FrameBuffer.HEIGHT; row++)
+			snap.graphics[row] = graphics[row][lane];
+
+		snap.I = (short)I[lane];
+		snap.PC = PC[lane];
+		snap.SP = (byte)SP[lane];
+		snap.keys = keys[lane];
+		snap.released = released[lane];
+		snap.waitingForKey = waitingForKey[lane];
+		snap.delay_timer = delayTimer[lane];
+		snap.sound_timer = soundTimer[lane];
+		snap.seed = seed[lane];
+		snap.frame = frame;
+
+		return snap;
+	}
+
+	/*
+		Times the engine against as many separate cores, each lane
+		seeded differently.
+	*/
+	public static void main(String[] args) throws Exception {
+		int lanes = DEFAULT_LANES;
+		int frames = DEFAULT_FRAMES;
+		int ipf = Scheduler.DEFAULT_IPF;
+		String rom = null;
+
+		for(int arg = 0; arg < args.length; arg++) {
+			if(args[arg].equals("-lanes") && arg + 1 < args.length)
+				lanes = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-frames") && arg + 1 < args.length)
+				frames = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-ipf") && arg + 1 < args.length)
+				ipf = Integer.parseInt(args[++arg]);
+			else
+				rom = args[arg];
+		}
+
+		if(rom == null) {
+			System.out.println("No ROM");
+			return;
+		}
+
+		RomImage image = RomImage.load(rom);
+
+		// Let the JIT compile both before anything is timed
+		time(image, lanes, frames, ipf);
+
+		System.out.println(time(image, lanes, frames, ipf));
+	}
+
+	/*
+		Whether two snapshots have the same registers, stack, memory
+		and screen.
+	*/
+	static boolean isSame(Snapshot a, Snapshot b) {
+		if(a.PC != b.PC || a.I != b.I || a.SP != b.SP ||
+			!Arrays.equals(a.V, b.V) || !Arrays.equals(a.stack, b.stack) ||
+			!Arrays.equals(a.graphics, b.graphics))
+		{
+			return false;
+		}
+
+		for(int page = 0; page < a.pages.length; page++) {
+			if(!Arrays.equals(a.pages[page], b.pages[page]))
+				return false;
+		}
+
+		return true;
+	}
+
+	/*
+		Runs lanes on the engine and on separate cores, each seeded
+		by its number, and reports how fast each went.
+	*/
+	private static String time(RomImage image, int lanes, int frames,
+		int ipf)
+	{
+		BatchEngine engine = new BatchEngine(image, lanes);
+		EmulatorCore[] cores = new EmulatorCore[lanes];
+
+		for(int lane = 0; lane < lanes; lane++) {
+			engine.setSeed(lane, lane);
+			cores[lane] = new EmulatorCore(image);
+			cores[lane].setSeed(lane);
+		}
+
+		long start = System.nanoTime();
+		long engineInstructions = 0;
+		for(int frame = 0; frame < frames; frame++)
+			engineInstructions += engine.runFrame(ipf);
+		long engineNanos = System.nanoTime() - start;
+
+		start = System.nanoTime();
+		long coreInstructions = 0;
+		for(int lane = 0; lane < lanes; lane++) {
+			for(int frame = 0; frame < frames; frame++)
+				coreInstructions += cores[lane].runFrame(ipf);
+		}
+		long coreNanos = System.nanoTime() - start;
+
+		int differ = 0;
+		for(int lane = 0; lane < lanes; lane++) {
+			Snapshot snap = engine.snapshot(lane);
+
+			if(!isSame(snap, cores[lane].snapshot()))
+				differ++;
+		}
+
+		return String.format("%d lanes, %d frames, %d lanes differ from " +
+			"separate cores%nengine %.1f Minstr/s, cores %.1f Minstr/s",
+			lanes, frames, differ, engineInstructions * 1e3 / engineNanos,
+			coreInstructions * 1e3 / coreNanos);
+	}
+}
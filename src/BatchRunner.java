@@ -0,0 +1,217 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+	Headless batch runner.
+
+	Runs every ROM in the given directories, archives or classpath
+	directories (roms/ and roms/testers/ by default, see RomSource)
+	at the same time, each on its own headless core with
+	no input, sound or video. Cores run unthrottled for a fixed number
+	of frames and the runner prints, per ROM, the instructions executed,
+	a hash of the final display and the wall time taken.
+
+	With -wav, each ROM's beeper is also written to a WAV file in the
+	given directory, one frame of samples per frame run.
+
+	ROMs start running as they're found, an archive doesn't have to be
+	walked all the way through first.
+
+	Usage: java BatchRunner [-frames N] [-ipf N] [-wav DIRECTORY]
+		[directory, archive, classpath:directory or ROM ...]
+*/
+public class BatchRunner {
+	static final int DEFAULT_FRAMES = 600;
+
+	/*
+		What a single ROM run produced.
+	*/
+	static class Result {
+		String rom;
+		long instructions;
+		long frames;
+		long displayHash;
+		long nanos;
+		Throwable error;
+
+		public String toString() {
+			String line = String.format("%-40s %10d instr %6d frames " +
+				"%016x %9.3f ms", rom, instructions, frames, displayHash,
+				nanos / 1e6);
+
+			if(error != null)
+				line += "  " + error;
+
+			return line;
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		int frames = DEFAULT_FRAMES;
+		int ipf = Scheduler.DEFAULT_IPF;
+		String wavDirectory = null;
+		List<String> paths = new ArrayList<String>();
+
+		for(int arg = 0; arg < args.length; arg++) {
+			if(args[arg].equals("-frames") && arg + 1 < args.length)
+				frames = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-ipf") && arg + 1 < args.length)
+				ipf = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-wav") && arg + 1 < args.length)
+				wavDirectory = args[++arg];
+			else
+				paths.add(args[arg]);
+		}
+
+		if(paths.isEmpty()) {
+			paths.add("roms");
+			paths.add("roms/testers");
+		}
+
+		// Work-stealing pool, one task per ROM
+		ExecutorService pool = Executors.newWorkStealingPool();
+		List<Future<Result>> results = new ArrayList<Future<Result>>();
+		List<RomSource> sources = new ArrayList<RomSource>();
+
+		long start = System.nanoTime();
+
+		for(String path : paths) {
+			try {
+				RomSource source = RomSource.open(path);
+				sources.add(source);
+
+				for(Path rom : source) {
+					results.add(pool.submit(task(source.nameOf(rom), rom,
+						frames, ipf, wavDirectory)));
+				}
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+			} catch(UncheckedIOException e) {
+				System.out.println(path + ": " + e.getCause());
+			}
+		}
+
+		long instructions = 0;
+
+		for(Future<Result> future : results) {
+			try {
+				Result result = future.get();
+				instructions += result.instructions;
+
+				System.out.println(result);
+			} catch(ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+
+		long nanos = System.nanoTime() - start;
+		pool.shutdown();
+
+		// Every ROM has been read by now
+		for(RomSource source : sources) {
+			try {
+				source.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		System.out.println(String.format("%d ROMs, %d instructions in " +
+			"%.3f ms", results.size(), instructions, nanos / 1e6));
+	}
+
+	static Callable<Result> task(final String name, final Path rom,
+		final int frames, final int ipf, final String wavDirectory)
+	{
+		return new Callable<Result>() {
+			public Result call() {
+				return run(name, rom, frames, ipf, wavDirectory);
+			}
+		};
+	}
+
+	/*
+		Runs one ROM headless and unthrottled for the given number of
+		frames, writing its sound to wavDirectory unless that's null.
+	*/
+	static Result run(String name, Path rom, int frames, int ipf,
+		String wavDirectory)
+	{
+		Result result = new Result();
+		result.rom = name;
+
+		long start = System.nanoTime();
+		AudioSink audio = NullAudioSink.INSTANCE;
+
+		EmulatorCore core = null;
+
+		try {
+			core = new EmulatorCore(RomImage.load(rom));
+
+			if(wavDirectory != null) {
+				audio = new WavAudioSink(new File(wavDirectory,
+					rom.getFileName() + ".wav").getPath());
+				core.setAudioSink(audio);
+			}
+
+			for(int frame = 0; frame < frames; frame++) {
+				// Nobody presses keys here, a core waiting for one
+				// with its timers out is done
+				if(core.isIdle()) {
+					core.skipFrames(frames - frame);
+					result.frames += frames - frame;
+					break;
+				}
+
+				result.instructions += core.runFrame(ipf);
+				result.frames++;
+			}
+		} catch(RuntimeException e) {
+			// Bad ROMs run off the end of memory, report and move on
+			result.error = e;
+		} catch(IOException e) {
+			result.error = e;
+		}
+
+		try {
+			audio.close();
+		} catch(IOException e) {
+			result.error = e;
+		}
+
+		result.nanos = System.nanoTime() - start;
+
+		if(core != null)
+			result.displayHash = core.getVRam().hash();
+
+		return result;
+	}
+}
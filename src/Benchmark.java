@@ -0,0 +1,333 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+	Interpreter benchmark.
+
+	Measures instructions per second and bytes allocated per
+	instruction, first for small programs that exercise one opcode
+	family each, then for whole ROMs from roms/testers/. Each
+	measurement is warmed up first so the JIT has compiled the core,
+	then timed over several iterations and the best is reported.
+
+	With -alloc it instead checks that the core doesn't allocate at
+	all: every program and ROM is warmed up and then run five times
+	for a million instructions, and the exit status is 1 if any of
+	those runs allocated or couldn't be run that long. Keys are pressed and let go of in turn
+	so ROMs waiting on Fx0A keep going.
+
+	ROMs translated by AotCompiler only run their translation with
+	-aot, so the interpreter is what's measured even with the jar on
+	the classpath.
+
+	Usage: java Benchmark [-alloc] [-recompile] [-nocache] [-aot]
+		[-iterations N] [ROM ...]
+*/
+public class Benchmark {
+	// Instructions per timed iteration
+	static final int INSTRUCTIONS = 10000000;
+	static final int WARMUP = 5;
+	static final int DEFAULT_ITERATIONS = 10;
+
+	// Instructions run by the allocation check
+	static final int ALLOC_INSTRUCTIONS = 1000000;
+
+	// Runs of ALLOC_INSTRUCTIONS to warm up with and then to measure.
+	// Blocks the recompiler only enters every few frames take a while
+	// to get through the JIT.
+	static final int ALLOC_WARMUP = 20;
+	static final int ALLOC_RUNS = 5;
+
+	// Instructions per frame for whole-ROM runs, the core stays busy
+	static final int ROM_IPF = 1000;
+
+	// Per-thread allocation counter
+	static final com.sun.management.ThreadMXBean THREADS =
+		(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+
+	// Holds each key in turn for a frame, then lets it go for one
+	static final KeySource TAPPING = new KeySource() {
+		public int poll(long frame) {
+			return ((frame & 1) == 0) ? 1 << ((frame >> 1) & 0xF) : 0;
+		}
+	};
+
+	static boolean recompile, noCache, allocCheck, precompiled;
+	static int iterations = DEFAULT_ITERATIONS;
+
+	public static void main(String[] args) {
+		List<String> roms = new ArrayList<String>();
+
+		for(int arg = 0; arg < args.length; arg++) {
+			if(args[arg].equals("-alloc"))
+				allocCheck = true;
+			else if(args[arg].equals("-recompile"))
+				recompile = true;
+			else if(args[arg].equals("-nocache"))
+				noCache = true;
+			else if(args[arg].equals("-aot"))
+				precompiled = true;
+			else if(args[arg].equals("-iterations") && arg + 1 < args.length)
+				iterations = Integer.parseInt(args[++arg]);
+			else
+				roms.add(args[arg]);
+		}
+
+		if(roms.isEmpty()) {
+			File[] files = new File("roms/testers").listFiles();
+
+			if(files != null) {
+				Arrays.sort(files);
+				for(File file : files)
+					roms.add(file.getPath());
+			}
+		}
+
+		if(allocCheck) {
+			boolean clean = true;
+
+			clean &= checkAllocations("alu 8xy*", new EmulatorCore(aluProgram()));
+			clean &= checkAllocations("draw Dxyn", new EmulatorCore(drawProgram()));
+			clean &= checkAllocations("bcd Fx33", new EmulatorCore(bcdProgram()));
+			clean &= checkAllocations("memory Fx55/Fx65",
+				new EmulatorCore(memoryProgram()));
+
+			for(String rom : roms)
+				clean &= checkAllocations(new File(rom).getName(),
+					new EmulatorCore(rom));
+
+			System.exit(clean ? 0 : 1);
+		}
+
+		System.out.println(String.format("%-32s %12s %12s", "benchmark",
+			"Minstr/s", "bytes/instr"));
+
+		// Opcode families
+		report("alu 8xy*", new EmulatorCore(aluProgram()));
+		report("draw Dxyn", new EmulatorCore(drawProgram()));
+		report("bcd Fx33", new EmulatorCore(bcdProgram()));
+		report("memory Fx55/Fx65", new EmulatorCore(memoryProgram()));
+
+		// Whole ROMs
+		for(String rom : roms)
+			report(new File(rom).getName(), new EmulatorCore(rom));
+	}
+
+	/*
+		Warms up, times and prints one benchmark.
+	*/
+	static void report(String name, EmulatorCore core) {
+		configure(core);
+
+		try {
+			for(int i = 0; i < WARMUP; i++)
+				measure(core);
+
+			double best = 0;
+			double bytes = Double.MAX_VALUE;
+
+			for(int i = 0; i < iterations; i++) {
+				double[] result = measure(core);
+
+				best = Math.max(best, result[0]);
+				bytes = Math.min(bytes, result[1]);
+			}
+
+			System.out.println(String.format("%-32s %12.2f %12.4f", name,
+				best / 1e6, bytes));
+		} catch(RuntimeException e) {
+			System.out.println(String.format("%-32s %s", name, e));
+		}
+	}
+
+	/*
+		Sets a core up the way the command line asked. Skipped wait
+		loops would count as instructions run without running them,
+		so every instruction is really executed here.
+	*/
+	static void configure(EmulatorCore core) {
+		core.setDecodeCache(!noCache);
+		core.setRecompiling(recompile);
+		core.setTimerWaitSkipping(false);
+		core.setPrecompiled(precompiled);
+	}
+
+	/*
+		Runs the core for ALLOC_INSTRUCTIONS after a warm-up and
+		reports whether it allocated anything. Returns true if not.
+	*/
+	static boolean checkAllocations(String name, EmulatorCore core) {
+		configure(core);
+		core.setKeySource(TAPPING);
+
+		long allocated = 0;
+
+		try {
+			// Decoding, compiling blocks and the JIT all allocate,
+			// get them out of the way first
+			for(int i = 0; i < ALLOC_WARMUP; i++)
+				runFor(core, ALLOC_INSTRUCTIONS);
+
+			// Every run has to come in clean. What reading the
+			// counter costs is measured around an empty run and
+			// taken off.
+			for(int i = 0; i < ALLOC_RUNS; i++) {
+				long start = allocatedBytes();
+				runFor(core, 0);
+				long overhead = allocatedBytes() - start;
+
+				start = allocatedBytes();
+				runFor(core, ALLOC_INSTRUCTIONS);
+				allocated = Math.max(allocated,
+					allocatedBytes() - start - overhead);
+			}
+		} catch(RuntimeException e) {
+			// Nothing measured is no reason to pass
+			System.out.println(String.format("%-32s %s, not measured",
+				name, e));
+			return false;
+		}
+
+		System.out.println(String.format("%-32s %s (%d bytes)", name,
+			allocated <= 0 ? "ok" : "ALLOCATES", allocated));
+
+		return allocated <= 0;
+	}
+
+	static void runFor(EmulatorCore core, int instructions) {
+		int executed = 0;
+		int stalled = 0;
+
+		while(executed < instructions) {
+			int ran = core.runFrame(Math.min(ROM_IPF, instructions - executed));
+			executed += ran;
+
+			// TAPPING lets every key go within 32 frames, a ROM
+			// that runs nothing for longer than that never will
+			stalled = (ran == 0) ? stalled + 1 : 0;
+			if(stalled > 32)
+				checkNotIdle(core);
+		}
+	}
+
+	/*
+		A ROM stopped at Fx0A has nothing left to measure, no keys get
+		pressed here.
+	*/
+	static void checkNotIdle(EmulatorCore core) {
+		if(core.isIdle())
+			throw new IllegalStateException("waiting for a key");
+	}
+
+	/*
+		Runs one iteration. Returns instructions per second and bytes
+		allocated per instruction.
+	*/
+	static double[] measure(EmulatorCore core) {
+		long allocated = allocatedBytes();
+		long start = System.nanoTime();
+
+		long executed = 0;
+		while(executed < INSTRUCTIONS) {
+			executed += core.runFrame(ROM_IPF);
+			checkNotIdle(core);
+		}
+
+		long nanos = System.nanoTime() - start;
+		allocated = allocatedBytes() - allocated;
+
+		return new double[] {
+			executed * 1e9 / nanos,
+			(double)allocated / executed
+		};
+	}
+
+	/*
+		Bytes allocated by this thread so far.
+	*/
+	static long allocatedBytes() {
+		return THREADS.getCurrentThreadAllocatedBytes();
+	}
+
+	/*
+		Builds a program that sets up with the passed opcodes, then
+		loops over the body opcodes forever.
+	*/
+	static byte[] program(int[] setup, int[] body) {
+		int length = setup.length + body.length + 1;
+		byte[] rom = new byte[length * 2];
+		int pos = 0;
+
+		for(int op : setup) {
+			rom[pos++] = (byte)(op >> 8);
+			rom[pos++] = (byte)op;
+		}
+
+		int loop = 0x200 + pos;
+		for(int op : body) {
+			rom[pos++] = (byte)(op >> 8);
+			rom[pos++] = (byte)op;
+		}
+
+		// 1nnn back to the top of the body
+		rom[pos++] = (byte)(0x10 | (loop >> 8));
+		rom[pos] = (byte)loop;
+
+		return rom;
+	}
+
+	static byte[] aluProgram() {
+		int[] setup = { 0x6012, 0x6134, 0x6256, 0x6378 };
+		int[] body = {
+			0x8010, 0x8121, 0x8232, 0x8303, 0x8014, 0x8125,
+			0x8236, 0x8307, 0x801E, 0x8124, 0x8235, 0x8306,
+			0x8017, 0x812E, 0x8231, 0x8302
+		};
+
+		return program(setup, body);
+	}
+
+	static byte[] drawProgram() {
+		// Font sprite for 0 at (V0, V1)
+		int[] setup = { 0x6008, 0x6104, 0xA000 };
+		int[] body = { 0xD015, 0xD015, 0xD01F, 0xD01F };
+
+		return program(setup, body);
+	}
+
+	static byte[] bcdProgram() {
+		int[] setup = { 0x6007, 0x612A, 0x62FF, 0xA300 };
+		int[] body = { 0xF033, 0xF133, 0xF233 };
+
+		return program(setup, body);
+	}
+
+	static byte[] memoryProgram() {
+		int[] setup = { 0x6011, 0x6122, 0x6233, 0xA300 };
+		int[] body = { 0xFF55, 0xFF65, 0xF355, 0xF365 };
+
+		return program(setup, body);
+	}
+}
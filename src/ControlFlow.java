@@ -0,0 +1,538 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+	Static control-flow analysis of a ROM.
+
+	Starting at 0x200, follows every way execution can go from each
+	instruction, exactly as Execute() would go, to find all the code
+	that can run. The code is split into basic blocks joined by their
+	successors. Memory that instructions read through I, with I set by
+	an LD I earlier in the same block, is marked as data. What's left
+	of the ROM is neither: padding, or data only reached with I
+	worked out at run time.
+
+	Where code goes with a JP V0 can't be known without running it,
+	those blocks are marked as indirect and their targets aren't
+	followed.
+
+	Usage: java ControlFlow [-list] [directory, archive or ROM ...]
+*/
+public class ControlFlow {
+	// What a byte of memory is, as bits
+	static final int CODE = 1;
+	static final int DATA = 2;
+
+	/*
+		A basic block: straight-line code from start to end (the
+		address of its last instruction), entered only at the top.
+	*/
+	static class Block {
+		int start, end;
+
+		// Where execution can go after the last instruction. A CALL
+		// goes to its target and, once that returns, to the next
+		// instruction.
+		int[] successors;
+
+		// Ends in a JP V0, which goes somewhere not worked out here
+		boolean indirect;
+
+		public String toString() {
+			StringBuilder text = new StringBuilder(String.format(
+				"%03X-%03X ->", start, end));
+
+			for(int successor : successors)
+				text.append(String.format(" %03X", successor));
+
+			if(indirect)
+				text.append(" ?");
+
+			return text.toString();
+		}
+	}
+
+	private final byte[] memory;
+	private final int end;
+
+	// Per address: an instruction starts here, a block starts here,
+	// and CODE and DATA bits
+	private final boolean[] instruction, leader;
+	private final byte[] kinds;
+
+	private final TreeMap<Integer, Block> blocks = new TreeMap<Integer, Block>();
+
+	// Some instruction writes over code
+	private boolean selfModifying;
+
+	private ControlFlow(byte[] memory, int end) {
+		this.memory = memory;
+		this.end = end;
+
+		instruction = new boolean[memory.length];
+		leader = new boolean[memory.length];
+		kinds = new byte[memory.length];
+	}
+
+	/*
+		Analyzes a ROM as it is right after loading.
+	*/
+	public static ControlFlow analyze(RomImage image) {
+		byte[] memory = new byte[EmulatorCore.PAGES * EmulatorCore.PAGE_SIZE];
+		System.arraycopy(EmulatorCore.FONT, 0, memory, 0,
+			EmulatorCore.FONT.length);
+		image.copyTo(memory, 0x200);
+
+		return analyze(memory, 0x200 + image.size());
+	}
+
+	/*
+		Analyzes a core's memory as it is now, from 0x200.
+	*/
+	public static ControlFlow analyze(EmulatorCore core) {
+		int end = (core.rom != null) ? 0x200 + core.rom.size() :
+			core.memory.length;
+
+		return analyze(core.memory.clone(), end);
+	}
+
+	/*
+		Analyzes memory from 0x200. end is where the ROM ends, only
+		used for reporting what's in it.
+	*/
+	static ControlFlow analyze(byte[] memory, int end) {
+		ControlFlow flow = new ControlFlow(memory, end);
+
+		flow.discover(0x200);
+		flow.buildBlocks();
+
+		return flow;
+	}
+
+	/*
+		Finds every instruction that can run, with a worklist rather
+		than recursion so long ROMs can't overflow the stack.
+	*/
+	private void discover(int entry) {
+		int[] work = new int[memory.length * 2];
+		int pending = 0;
+
+		work[pending++] = entry;
+		leader[entry] = true;
+
+		while(pending > 0) {
+			int address = work[--pending];
+
+			// Running off the end of memory fails when it's run
+			if(address < 0 || address + 1 >= memory.length ||
+				instruction[address])
+			{
+				continue;
+			}
+
+			instruction[address] = true;
+			kinds[address] |= CODE;
+			kinds[address + 1] |= CODE;
+
+			Instruction inst = decodeAt(address);
+			int[] next = successorsOf(inst, address);
+
+			for(int successor : next) {
+				if(successor >= 0 && successor < memory.length)
+					work[pending++] = successor;
+			}
+
+			if(endsBlock(inst)) {
+				for(int successor : next) {
+					if(successor >= 0 && successor < memory.length)
+						leader[successor] = true;
+				}
+			}
+		}
+	}
+
+	/*
+		Splits the instructions found into blocks, and marks the data
+		each block reads.
+	*/
+	private void buildBlocks() {
+		for(int start = 0; start < memory.length; start++) {
+			if(!leader[start] || !instruction[start])
+				continue;
+
+			Block block = new Block();
+			block.start = start;
+
+			int address = start;
+			int i = -1;
+
+			while(true) {
+				Instruction inst = decodeAt(address);
+				i = markData(inst, i);
+
+				if(endsBlock(inst) || address + 2 >= memory.length ||
+					!instruction[address + 2] || leader[address + 2])
+				{
+					block.end = address;
+					block.successors = successorsOf(inst, address);
+					block.indirect = inst.type == Instruction.JP_V0;
+					break;
+				}
+
+				address += 2;
+			}
+
+			blocks.put(start, block);
+		}
+	}
+
+	/*
+		Marks what an instruction reads or writes through I as data,
+		when I is known. Returns I after the instruction, -1 when it
+		isn't known.
+	*/
+	private int markData(Instruction inst, int i) {
+		switch(inst.type) {
+		case Instruction.LD_I:
+			return inst.nnn;
+		case Instruction.ADD_I_VX:
+		case Instruction.LD_F_VX:
+			return -1;
+		case Instruction.DRW:
+			mark(i, inst.n, false);
+			return i;
+		case Instruction.LD_B_VX:
+			mark(i, 3, true);
+			return i;
+		case Instruction.LD_MEM_VX:
+			mark(i, inst.x + 1, true);
+			return i;
+		case Instruction.LD_VX_MEM:
+			mark(i, inst.x + 1, false);
+			return i;
+		default:
+			return i;
+		}
+	}
+
+	private void mark(int address, int length, boolean write) {
+		if(address < 0)
+			return;
+
+		for(int offset = 0; offset < length &&
+			address + offset < memory.length; offset++)
+		{
+			kinds[address + offset] |= DATA;
+
+			if(write && (kinds[address + offset] & CODE) != 0)
+				selfModifying = true;
+		}
+	}
+
+	/*
+		Where execution goes after an instruction, as in Execute().
+	*/
+	private static int[] successorsOf(Instruction inst, int address) {
+		switch(inst.type) {
+		case Instruction.JP:
+			return new int[] { inst.nnn };
+		case Instruction.CALL:
+			return new int[] { inst.nnn, address + 2 };
+		case Instruction.RET:
+		case Instruction.JP_V0:
+			return new int[0];
+		case Instruction.SE_BYTE:
+		case Instruction.SNE_BYTE:
+		case Instruction.SE_REG:
+		case Instruction.SNE_REG:
+		case Instruction.SKP:
+		case Instruction.SKNP:
+			return new int[] { address + 2, address + 4 };
+		case Instruction.SYS:
+		case Instruction.KEY_NOP:
+			// These don't move PC, the core stays here for good
+			return new int[] { address };
+		default:
+			return new int[] { address + 2 };
+		}
+	}
+
+	/*
+		Whether execution can go anywhere but the next instruction.
+	*/
+	private static boolean endsBlock(Instruction inst) {
+		switch(inst.type) {
+		case Instruction.JP:
+		case Instruction.CALL:
+		case Instruction.RET:
+		case Instruction.JP_V0:
+		case Instruction.SE_BYTE:
+		case Instruction.SNE_BYTE:
+		case Instruction.SE_REG:
+		case Instruction.SNE_REG:
+		case Instruction.SKP:
+		case Instruction.SKNP:
+		case Instruction.SYS:
+		case Instruction.KEY_NOP:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private Instruction decodeAt(int address) {
+		return Instruction.decode(((memory[address] & 0xFF) << 8) |
+			(memory[address + 1] & 0xFF));
+	}
+
+	/*
+		The blocks, in address order.
+	*/
+	public Collection<Block> getBlocks() {
+		return blocks.values();
+	}
+
+	/*
+		The block starting at an address, or null.
+	*/
+	public Block getBlock(int address) {
+		return blocks.get(address);
+	}
+
+	/*
+		Whether an instruction that can run starts at an address.
+	*/
+	public boolean isInstruction(int address) {
+		return instruction[address];
+	}
+
+	/*
+		CODE and DATA bits for a byte of memory, 0 if it's neither.
+	*/
+	public int kindOf(int address) {
+		return kinds[address];
+	}
+
+	public boolean isSelfModifying() {
+		return selfModifying;
+	}
+
+	/*
+		Bytes of the ROM that are code, data, both and neither, in
+		that order.
+	*/
+	public int[] getCoverage() {
+		int[] coverage = new int[4];
+
+		for(int address = 0x200; address < end; address++) {
+			int kind = kinds[address];
+
+			if(kind == (CODE | DATA))
+				coverage[2]++;
+			else if(kind == CODE)
+				coverage[0]++;
+			else if(kind == DATA)
+				coverage[1]++;
+			else
+				coverage[3]++;
+		}
+
+		return coverage;
+	}
+
+	/*
+		Disassembles the ROM: code a block at a time with where each
+		goes, and everything else as bytes.
+	*/
+	public String listing() {
+		StringBuilder text = new StringBuilder();
+
+		for(int address = 0x200; address < end; ) {
+			if(instruction[address] && address + 1 < memory.length) {
+				Block block = blocks.get(address);
+
+				if(block != null)
+					text.append(String.format("%n%s%n", block));
+
+				int opcode = ((memory[address] & 0xFF) << 8) |
+					(memory[address + 1] & 0xFF);
+
+				text.append(String.format("  %03X  %04X  %s%n", address,
+					opcode, Disassembler.format(opcode)));
+
+				address += 2;
+				continue;
+			}
+
+			// A run of non-code, a line at a time
+			StringBuilder bytes = new StringBuilder();
+			int start = address;
+			boolean data = (kinds[address] & DATA) != 0;
+
+			while(address < end && !instruction[address] &&
+				address - start < 8 && ((kinds[address] & DATA) != 0) == data)
+			{
+				bytes.append(String.format(" %02X", memory[address] & 0xFF));
+				address++;
+			}
+
+			text.append(String.format("  %03X  %-4s %s%n", start,
+				data ? "DB" : "??", bytes));
+		}
+
+		return text.toString();
+	}
+
+	/*
+		What analyzing one ROM found.
+	*/
+	static class Summary {
+		String rom;
+		ControlFlow flow;
+		long nanos;
+		Throwable error;
+
+		public String toString() {
+			if(error != null)
+				return String.format("%-40s %s", rom, error);
+
+			int[] coverage = flow.getCoverage();
+			int indirect = 0;
+
+			for(Block block : flow.getBlocks()) {
+				if(block.indirect)
+					indirect++;
+			}
+
+			return String.format("%-40s %4d blocks %5d code %5d data " +
+				"%4d both %5d other %2d indirect%s %8.3f ms", rom,
+				flow.blocks.size(), coverage[0], coverage[1], coverage[2],
+				coverage[3], indirect,
+				flow.isSelfModifying() ? " self-modifying" : "",
+				nanos / 1e6);
+		}
+	}
+
+	/*
+		Analyzes every ROM in the given places (roms/ and roms/testers/
+		by default) in parallel and prints what was found.
+	*/
+	public static void main(String[] args) throws InterruptedException {
+		boolean list = false;
+		List<String> paths = new ArrayList<String>();
+
+		for(int arg = 0; arg < args.length; arg++) {
+			if(args[arg].equals("-list"))
+				list = true;
+			else
+				paths.add(args[arg]);
+		}
+
+		if(paths.isEmpty()) {
+			paths.add("roms");
+			paths.add("roms/testers");
+		}
+
+		ExecutorService pool = Executors.newWorkStealingPool();
+		List<Future<Summary>> results = new ArrayList<Future<Summary>>();
+		List<RomSource> sources = new ArrayList<RomSource>();
+
+		long start = System.nanoTime();
+
+		for(String path : paths) {
+			try {
+				RomSource source = RomSource.open(path);
+				sources.add(source);
+
+				for(Path rom : source)
+					results.add(pool.submit(task(source.nameOf(rom), rom)));
+			} catch(IOException e) {
+				System.out.println(e.getMessage());
+			} catch(UncheckedIOException e) {
+				System.out.println(path + ": " + e.getCause());
+			}
+		}
+
+		List<Summary> summaries = new ArrayList<Summary>();
+
+		for(Future<Summary> future : results) {
+			try {
+				summaries.add(future.get());
+			} catch(ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+		}
+
+		long nanos = System.nanoTime() - start;
+		pool.shutdown();
+
+		for(RomSource source : sources) {
+			try {
+				source.close();
+			} catch(IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		for(Summary summary : summaries) {
+			System.out.println(summary);
+
+			if(list && summary.flow != null)
+				System.out.println(summary.flow.listing());
+		}
+
+		System.out.println(String.format("%d ROMs analyzed in %.3f ms",
+			summaries.size(), nanos / 1e6));
+	}
+
+	static Callable<Summary> task(final String name, final Path rom) {
+		return new Callable<Summary>() {
+			public Summary call() {
+				Summary summary = new Summary();
+				summary.rom = name;
+
+				long start = System.nanoTime();
+
+				try {
+					summary.flow = analyze(RomImage.load(rom));
+				} catch(IOException e) {
+					summary.error = e;
+				}
+
+				summary.nanos = System.nanoTime() - start;
+
+				return summary;
+			}
+		};
+	}
+}
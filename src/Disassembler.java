@@ -0,0 +1,87 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+/*
+	Turns opcodes back into assembly, in the mnemonics of Cowgod's
+	CHIP-8 technical reference.
+*/
+public class Disassembler {
+	private Disassembler() {
+	}
+
+	/*
+		Returns the assembly for a 16-bit opcode. Opcodes that aren't
+		instructions come out as a DW of the raw word.
+	*/
+	public static String format(int opcode) {
+		Instruction inst = Instruction.decode(opcode & 0xFFFF);
+
+		String x = "V" + hex(inst.x, 1), y = "V" + hex(inst.y, 1);
+		String kk = "#" + hex(inst.kk, 2), nnn = "#" + hex(inst.nnn, 3);
+
+		switch(inst.type) {
+		case Instruction.SYS:		return "SYS " + nnn;
+		case Instruction.CLS:		return "CLS";
+		case Instruction.RET:		return "RET";
+		case Instruction.JP:		return "JP " + nnn;
+		case Instruction.CALL:		return "CALL " + nnn;
+		case Instruction.SE_BYTE:	return "SE " + x + ", " + kk;
+		case Instruction.SNE_BYTE:	return "SNE " + x + ", " + kk;
+		case Instruction.SE_REG:	return "SE " + x + ", " + y;
+		case Instruction.LD_BYTE:	return "LD " + x + ", " + kk;
+		case Instruction.ADD_BYTE:	return "ADD " + x + ", " + kk;
+		case Instruction.LD_REG:	return "LD " + x + ", " + y;
+		case Instruction.OR:		return "OR " + x + ", " + y;
+		case Instruction.AND:		return "AND " + x + ", " + y;
+		case Instruction.XOR:		return "XOR " + x + ", " + y;
+		case Instruction.ADD_REG:	return "ADD " + x + ", " + y;
+		case Instruction.SUB:		return "SUB " + x + ", " + y;
+		case Instruction.SHR:		return "SHR " + x;
+		case Instruction.SUBN:		return "SUBN " + x + ", " + y;
+		case Instruction.SHL:		return "SHL " + x;
+		case Instruction.SNE_REG:	return "SNE " + x + ", " + y;
+		case Instruction.LD_I:		return "LD I, " + nnn;
+		case Instruction.JP_V0:		return "JP V0, " + nnn;
+		case Instruction.RND:		return "RND " + x + ", " + kk;
+		case Instruction.DRW:		return "DRW " + x + ", " + y + ", " + inst.n;
+		case Instruction.SKP:		return "SKP " + x;
+		case Instruction.SKNP:		return "SKNP " + x;
+		case Instruction.LD_VX_DT:	return "LD " + x + ", DT";
+		case Instruction.LD_VX_K:	return "LD " + x + ", K";
+		case Instruction.LD_DT_VX:	return "LD DT, " + x;
+		case Instruction.LD_ST_VX:	return "LD ST, " + x;
+		case Instruction.ADD_I_VX:	return "ADD I, " + x;
+		case Instruction.LD_F_VX:	return "LD F, " + x;
+		case Instruction.LD_B_VX:	return "LD B, " + x;
+		case Instruction.LD_MEM_VX:	return "LD [I], " + x;
+		case Instruction.LD_VX_MEM:	return "LD " + x + ", [I]";
+		default:			return "DW #" + hex(opcode & 0xFFFF, 4);
+		}
+	}
+
+	private static String hex(int value, int digits) {
+		String text = Integer.toHexString(value).toUpperCase();
+
+		while(text.length() < digits)
+			text = "0" + text;
+
+		return text;
+	}
+}
@@ -17,6 +17,7 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
+import java.io.IOException;
 import javax.swing.JFrame;
 
 /*
@@ -26,7 +27,7 @@ import javax.swing.JFrame;
 */
 public class Emulator {
 	public static void main(String[] args) {
-		JFrame frame = new JFrame();
+		final JFrame frame = new JFrame();
 		frame.setSize(275, 170);
 		frame.setTitle("C8 - Chip 8 Interpreter");
 		frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -41,19 +42,145 @@ public class Emulator {
 		// Set ROM filename from command line
 		String ROM = args[0];
 
+		// Options following the ROM
+		int ipf = Scheduler.DEFAULT_IPF;
+		long rewindBudget = 0;
+		String recording = null;
+
+		for(int arg = 1; arg < args.length; arg++) {
+			if(args[arg].equals("-ipf") && arg + 1 < args.length) {
+				// Instructions per 60 Hz frame
+				ipf = Integer.parseInt(args[++arg]);
+			}
+			else if(args[arg].equals("-rewind") && arg + 1 < args.length) {
+				// Rewind buffer size in megabytes, hold backspace
+				rewindBudget = Long.parseLong(args[++arg]) << 20;
+			}
+			else if(args[arg].equals("-record") && arg + 1 < args.length) {
+				// Record the keys pressed, see InputReplay
+				recording = args[++arg];
+			}
+			else {
+				System.out.println("Unknown option: " + args[arg]);
+				return;
+			}
+		}
+
+		// Rewinding moves the frame count backwards, which a recording
+		// has no way to express
+		if(recording != null && rewindBudget > 0) {
+			System.out.println("-record and -rewind can't be used together");
+			return;
+		}
+
 		// Create input and emulation core instance
-		Input input = new Input(frame);
-		EmulatorCore emulator = new EmulatorCore(ROM, input);
+		final Input input = new Input(frame);
+		final EmulatorCore emulator = new EmulatorCore(ROM, input);
+
+		if(recording != null) {
+			final InputRecorder recorder;
+
+			// A recording is tied to the ROM's contents
+			if(emulator.rom == null) {
+				System.out.println("No ROM loaded, nothing to record");
+				return;
+			}
+
+			try {
+				recorder = new InputRecorder(recording, ROM, emulator.rom, ipf,
+					input, emulator.getVRam());
+			} catch(IOException e) {
+				System.out.println("Can't record to " + recording + ": " + e);
+				return;
+			}
+
+			emulator.setKeySource(recorder);
+
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						recorder.close();
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+
+		// Always counting, see Metrics for what it costs
+		final Metrics metrics = new Metrics();
+		metrics.register("emulator");
+		emulator.setMetrics(metrics);
+
+		// Dump the instruction trace on the way out, if tracing
+		if(Trace.ENABLED) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						emulator.getTrace().dump(
+							System.getProperty("c8.trace.file", "c8.trace"));
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+
+		// Write the profile on the way out, if profiling
+		if(Profiler.ENABLED) {
+			Runtime.getRuntime().addShutdownHook(new Thread() {
+				public void run() {
+					try {
+						emulator.getProfiler().write(emulator,
+							System.getProperty("c8.profile.file",
+							"c8.profile.txt"));
+					} catch(IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
 
 		// Initialize graphics
-		Video video = new Video(emulator.getVRam());
+		final Video video = new Video(emulator.getVRam());
 		frame.add(video);
 		frame.setVisible(true);
 
-		// Emulation cycle
-		do {
-			emulator.cycle();
-			frame.repaint();
-		} while(true);
+		final Rewind rewind = rewindBudget > 0 ?
+			new Rewind(rewindBudget, Rewind.DEFAULT_KEYFRAME_INTERVAL) : null;
+
+		// Emulation cycle, the display repaints at most once a frame.
+		// While rewinding, the frame that just ran is thrown away and
+		// the one recorded before the last is put back instead.
+		final Scheduler scheduler = new Scheduler(emulator, ipf);
+		scheduler.setMetrics(metrics);
+		scheduler.setFrameListener(new Runnable() {
+			public void run() {
+				if(rewind != null) {
+					if(input.isRewinding())
+						rewind.rewind(emulator, 1);
+					else
+						rewind.record(emulator);
+				}
+
+				video.frameComplete();
+			}
+		});
+
+		// The scheduler sleeps while the ROM waits for a key
+		input.setWakeup(new Runnable() {
+			public void run() {
+				scheduler.wake();
+			}
+		});
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			public void run() {
+				System.out.println(scheduler.getReport());
+				System.out.print(metrics.getReport());
+			}
+		});
+
+		scheduler.run();
 	}
 }
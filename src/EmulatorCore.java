@@ -18,54 +18,170 @@
 */
 
 import java.io.File;
-import java.io.InputStream;
-import java.io.FileInputStream;
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
-import java.util.Random;
+import java.util.Arrays;
 import java.lang.Thread;
 
 /*
 	The core of the interpreter. All CPU-related things wll be here
 */
 public class EmulatorCore {
+	// The font sprites, 0 to F, five bytes each
+	static final byte[] FONT = bytes(new int[] {
+		0xF0, 0x90, 0x90, 0x90, 0xF0,
+		0x20, 0x60, 0x20, 0x20, 0x70,
+		0xF0, 0x10, 0xF0, 0x80, 0xF0,
+		0xF0, 0x10, 0xF0, 0x10, 0xF0,
+		0x90, 0x90, 0xF0, 0x10, 0x10,
+		0xF0, 0x80, 0xF0, 0x10, 0xF0,
+		0xF0, 0x80, 0xF0, 0x90, 0xF0,
+		0xF0, 0x10, 0x20, 0x40, 0x40,
+		0xF0, 0x90, 0xF0, 0x90, 0xF0,
+		0xF0, 0x90, 0xF0, 0x10, 0xF0,
+		0xF0, 0x90, 0xF0, 0x90, 0x90,
+		0xE0, 0x90, 0xE0, 0x90, 0xE0,
+		0xF0, 0x80, 0x80, 0x80, 0xF0,
+		0xE0, 0x90, 0x90, 0x90, 0xE0,
+		0xF0, 0x80, 0xF0, 0x80, 0xF0,
+		0xF0, 0x80, 0xF0, 0x80, 0x80
+	});
+
+	// Memory is tracked in pages for snapshots and instruction decoding
+	static final int PAGE_SHIFT = 8;
+	static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+	static final int PAGES = 4096 / PAGE_SIZE;
+
+	// A page with nothing decoded yet, shared by every core
+	private static final Instruction[] NO_INSTRUCTIONS =
+		new Instruction[PAGE_SIZE];
+
 	// CPU related
 	short Opcode, I;
-	byte[] memory, rom, V;
-	byte[][] graphics;
-	byte SP, key;
-	int PC, stack[], delay_timer, sound_timer, instruction_count;
+	byte[] memory = new byte[4096], V = new byte[16];
+	RomImage rom;
 
-	// Peripheral to CPU
-	Input input;
-	Random gen;
-	Sound sound;
-	Thread inputThread, soundThread;
+	// Memory hasn't been written since reset()
+	boolean untouched;
+	long[] graphics = new long[FrameBuffer.HEIGHT];
+
+	// One bit per VRAM row changed since the display last looked
+	int dirtyRows;
+	byte SP;
+
+	// Keys held this frame, one bit per key, and keys let go of since
+	// the frame before that no Fx0A has taken yet
+	int keys, released;
+
+	// Stopped at an Fx0A until a key is let go of
+	boolean waitingForKey;
+	int PC, stack[] = new int[16], delay_timer, sound_timer;
+
+	// Random number generator state, see nextRandom()
+	long seed;
+
+	// Frames run since reset
+	long frame;
+
+	// Memory pages as of the last snapshot, shared with that snapshot,
+	// and one bit per page written since
+	byte[][] shadow = new byte[PAGES][];
+	int dirtyPages;
+
+	// Pre-decoded instructions by memory page, then address within the
+	// page. Pages not in ownedPages are shared with other cores (the
+	// ROM image's, or NO_INSTRUCTIONS) and copied before being written.
+	Instruction[][] decoded = new Instruction[PAGES][];
+	int ownedPages;
+	boolean cacheDecoded = true;
+
+	// Compiled blocks, only used when recompiling is turned on
+	Recompiler recompiler;
+
+	// The ROM translated ahead of time, if its class is on the
+	// classpath, and the same while memory still holds the code it
+	// was translated from and translations are in use
+	AotProgram precompiled, aot;
+	boolean usePrecompiled = true;
+
+	// Skip over loops waiting on the delay timer, see skipTimerWait()
+	boolean skipTimerWaits = true;
+
+	// Instruction trace, only exists when tracing is turned on
+	Trace trace;
+
+	// Execution counts by address, only exists when profiling
+	Profiler profiler;
 
-	// Instruction limiting related
-	double rate, per, allowance;
-	long current, passed, last_checked;
+	// Where counts go once a frame, null when not counting.
+	// Instructions run this frame by the top nibble of the opcode.
+	Metrics metrics;
+	long[] familyCounts = new long[16];
+
+	// The frame event, reused every frame and only timed while JFR
+	// is recording it
+	final FrameEvent frameEvent = new FrameEvent();
+
+	// The wait for a key in progress, while counting
+	KeyWaitEvent keyWait;
+	long keyWaitStart, keyWaitFrame;
+
+	// Peripheral to CPU
+	KeySource keySource;
+	AudioSink audio = NullAudioSink.INSTANCE;
 
 	// Constructor	
 	public EmulatorCore(String romFile, Input inputObj) {
-		// Seed our random to 567765, there was a technical
-		// reason for this number but I forgot it.
-		gen = new Random(567765);
+		this(romFile);
 
-		reset();
+		// Start input thread
+		keySource = inputObj;
+
+		// Sound initialization
+		audio = Sound.open();
+	}
+
+	/*
+		Headless constructor.
+
+		No input, sound or video is attached. Key instructions see no
+		keys pressed until a key source is set, and sound goes nowhere
+		until an audio sink is set, which is what batch runs want.
+	*/
+	public EmulatorCore(String romFile) {
+		this();
 		
 		if(!loadRom(romFile)) {
 			// TODO Throw some exception
 		}
+	}
 
-		// Start input thread
-		input = inputObj;
+	/*
+		Headless constructor for a loaded ROM image.
+	*/
+	public EmulatorCore(RomImage image) {
+		this();
 
-		// Sound initialization
-		sound = new Sound();
-		soundThread = new Thread(sound);
-		soundThread.start();
+		loadRom(image);
+	}
+
+	/*
+		Headless constructor for a ROM that's already in memory.
+	*/
+	public EmulatorCore(byte[] romData) {
+		this();
+
+		loadRom(romData);
+	}
+
+	private EmulatorCore() {
+		reset();
+
+		if(Trace.ENABLED)
+			trace = new Trace();
+
+		if(Profiler.ENABLED)
+			profiler = new Profiler();
 	}
 	
 	/*
@@ -73,618 +189,1141 @@ public class EmulatorCore {
 	*/
 	public void reset() {
 		I = 0x0;
-		// Allocate virtual memory, registers, VRAM and stack
-		memory = new byte[4096];
-		V = new byte[16];
-		graphics = new byte[64][32];
-		stack = new int[16];
+		SP = 0;
+		// Clear virtual memory, registers, VRAM and stack
+		Arrays.fill(memory, (byte)0);
+		Arrays.fill(V, (byte)0);
+		Arrays.fill(graphics, 0);
+		dirtyRows = -1;
+		Arrays.fill(stack, 0);
+		Arrays.fill(decoded, NO_INSTRUCTIONS);
+		ownedPages = 0;
+		if(recompiler != null)
+			recompiler.clear();
+		aot = null;
+
+		// Nothing is shared with a snapshot any more
+		Arrays.fill(shadow, null);
+		dirtyPages = (1 << PAGES) - 1;
+
+		// Seed our random to 567765, there was a technical
+		// reason for this number but I forgot it.
+		setSeed(567765);
 
-		// Set key inputted to error/none
-		key = -1;
+		// No keys held
+		keys = 0;
+		released = 0;
+		waitingForKey = false;
+		frame = 0;
+		keyWait = null;
 
 		// Set timers
 		delay_timer = 0;
 		sound_timer = 0;
 
-		// Reset instruction count
-		instruction_count = 0;
-
-		// Initialize instruction limiting
-		// 14 instructions allowed
-		rate = 14;
-		// per 100 millisecond
-		per = 100;
-		allowance = rate;
-		last_checked = System.currentTimeMillis();
-		
 		// ROM gets mapped to memory starting at 0x200
 		PC = 0x200;
 
-		// Set the font sprites
-		int[] font = {
-			0xF0, 0x90, 0x90, 0x90, 0xF0,
-			0x20, 0x60, 0x20, 0x20, 0x70,
-			0xF0, 0x10, 0xF0, 0x80, 0xF0,
-			0xF0, 0x10, 0xF0, 0x10, 0xF0,
-			0x90, 0x90, 0xF0, 0x10, 0x10,
-			0xF0, 0x80, 0xF0, 0x10, 0xF0,
-			0xF0, 0x80, 0xF0, 0x90, 0xF0,
-			0xF0, 0x10, 0x20, 0x40, 0x40,
-			0xF0, 0x90, 0xF0, 0x90, 0xF0,
-			0xF0, 0x90, 0xF0, 0x10, 0xF0,
-			0xF0, 0x90, 0xF0, 0x90, 0x90,
-			0xE0, 0x90, 0xE0, 0x90, 0xE0,
-			0xF0, 0x80, 0x80, 0x80, 0xF0,
-			0xE0, 0x90, 0x90, 0x90, 0xE0,
-			0xF0, 0x80, 0xF0, 0x80, 0xF0,
-			0xF0, 0x80, 0xF0, 0x80, 0x80
-		};
-
 		// Load font sprite into memory map
-		for(int x = 0; x < font.length; x++)
-			memory[x] = (byte)font[x];
+		System.arraycopy(FONT, 0, memory, 0, FONT.length);
+		untouched = true;
+	}
+
+	/*
+		Takes a snapshot of the whole machine.
+
+		Memory pages that haven't been written since the last snapshot
+		are shared with it rather than copied, so this costs the pages
+		written plus the registers and VRAM.
+	*/
+	public Snapshot snapshot() {
+		for(int page = 0; page < PAGES; page++) {
+			if((dirtyPages & (1 << page)) != 0) {
+				shadow[page] = Arrays.copyOfRange(memory,
+					page * PAGE_SIZE, (page + 1) * PAGE_SIZE);
+			}
+		}
+		dirtyPages = 0;
+
+		Snapshot snap = new Snapshot();
+		snap.pages = shadow.clone();
+		snap.V = V.clone();
+		snap.stack = stack.clone();
+		snap.graphics = graphics.clone();
+		snap.I = I;
+		snap.PC = PC;
+		snap.SP = SP;
+		snap.keys = keys;
+		snap.released = released;
+		snap.waitingForKey = waitingForKey;
+		snap.delay_timer = delay_timer;
+		snap.sound_timer = sound_timer;
+		snap.seed = seed;
+		snap.frame = frame;
+
+		return snap;
+	}
+
+	/*
+		Puts the machine back to the state in a snapshot.
+
+		Only memory pages that differ from the snapshot's are copied
+		back; pages the core still shares with it are left alone.
+	*/
+	public void restore(Snapshot snap) {
+		for(int page = 0; page < PAGES; page++) {
+			if(shadow[page] != snap.pages[page] ||
+				(dirtyPages & (1 << page)) != 0)
+			{
+				System.arraycopy(snap.pages[page], 0, memory,
+					page * PAGE_SIZE, PAGE_SIZE);
+				invalidate(page * PAGE_SIZE, PAGE_SIZE);
+			}
+		}
+
+		System.arraycopy(snap.pages, 0, shadow, 0, PAGES);
+		dirtyPages = 0;
+
+		System.arraycopy(snap.V, 0, V, 0, V.length);
+		System.arraycopy(snap.stack, 0, stack, 0, stack.length);
+		System.arraycopy(snap.graphics, 0, graphics, 0, graphics.length);
+		dirtyRows = -1;
+		I = snap.I;
+		PC = snap.PC;
+		SP = snap.SP;
+		keys = snap.keys;
+		released = snap.released;
+		waitingForKey = snap.waitingForKey;
+		delay_timer = snap.delay_timer;
+		sound_timer = snap.sound_timer;
+		seed = snap.seed;
+		frame = snap.frame;
+
+		// Pages copied back count as written, but may well hold the
+		// same code
+		checkPrecompiled();
+	}
+
+	/*
+		Returns a random number from 0 up to (but not including)
+		bound.
+
+		This is the same generator java.util.Random uses, kept in a
+		plain long so snapshots can save and restore it.
+	*/
+	int nextRandom(int bound) {
+		int bits, value;
+
+		do {
+			seed = (seed * 0x5DEECE66DL + 0xBL) & ((1L << 48) - 1);
+			bits = (int)(seed >>> 17);
+			value = bits % bound;
+		} while(bits - value + (bound - 1) < 0);
+
+		return value;
 	}
 	
+	/*
+		Seeds the random number generator, the same way
+		java.util.Random takes a seed.
+	*/
+	public void setSeed(long value) {
+		seed = scramble(value);
+	}
+
+	static long scramble(long value) {
+		return (value ^ 0x5DEECE66DL) & ((1L << 48) - 1);
+	}
+
+	private static byte[] bytes(int[] values) {
+		byte[] bytes = new byte[values.length];
+
+		for(int i = 0; i < values.length; i++)
+			bytes[i] = (byte)values[i];
+
+		return bytes;
+	}
+
 	/*
 		Loads passed ROM location into virtual memory (at 0x200).
 	*/
 	public boolean loadRom(String file) {
-		InputStream stream;
-	
-		System.out.println("Hello?");	
 		try {
-			stream = new FileInputStream(file);
+			loadRom(RomImage.load(file));
 
-			// Get actual size of file	
-			int c = 0, romSize = 0;
-			for(int x = 0; c != -1; x++) {
-				c = stream.read();
-			
-				// How many bytes are in the rom?
-				if(c == -1) {
-					romSize = x;
+			return true;
+		} catch(IOException e) {
+			System.out.println("Can't load ROM: " + e);
 
-					break;
-				}
-			}
-		
-			rom = new byte[romSize];
-			System.out.println("Rom size: " +
-				String.format("%x", romSize));
-		
-			// Read file into rom
-			stream = new FileInputStream(file);
-			stream.read(rom, 0, romSize);
+			return false;
+		}
+	}
 
-			// Copy rom into memory map starting at 0x200
-			System.arraycopy(rom, 0, memory, 0x200, romSize);
+	/*
+		Loads a ROM image that's already in memory (at 0x200).
+	*/
+	public void loadRom(byte[] data) {
+		loadRom(RomImage.of(data));
+	}
 
-			// Debug
-			System.out.println("rom1: " + rom[0]);
+	/*
+		Loads a ROM image (at 0x200). Cores loading the same image
+		share its decoded instructions instead of decoding their own.
+	*/
+	public void loadRom(RomImage image) {
+		rom = image;
 
-			stream.close();
-			
-			return true;
-		} catch(Exception e) {
-			e.printStackTrace();
+		boolean fresh = untouched;
 
-			return false;
+		// Copy rom into memory map starting at 0x200
+		image.copyTo(memory, 0x200);
+
+		// The image's instructions are only right if the rest of
+		// memory is as reset() left it. Its pages are shared, not
+		// copied.
+		if(fresh && cacheDecoded) {
+			written(0x200, image.size());
+			System.arraycopy(image.decoded, 0, decoded, 0, PAGES);
+			ownedPages = 0;
 		}
+		else {
+			invalidate(0x200, image.size());
+		}
+
+		precompiled = AotProgram.forImage(image);
+		checkPrecompiled();
 	}
 
 	/*
-		Returns the emulator core's VRAM.
+		Returns a read-only view of the emulator core's VRAM.
 
 		The Video class uses this to implement the graphics driver.
 	*/
-	public byte[][] getVRam() {
-		return graphics;
+	public FrameBuffer getVRam() {
+		return new FrameBuffer(this);
+	}
+
+	/*
+		Runs one 60 Hz frame: ipf instructions followed by a single
+		update of the delay and sound timers. Returns the number of
+		instructions that ran.
+
+		Keys are only read from the key source here, before the frame
+		runs, so every instruction in a frame sees the same keys.
+
+		While the core is waiting for a key nothing runs, but the
+		timers still tick.
+
+		Pacing frames out in real time is the Scheduler's job.
+	*/
+	public int runFrame(int ipf) {
+		boolean timed = metrics != null && frameEvent.isEnabled();
+
+		if(timed)
+			frameEvent.begin();
+
+		if(keySource != null) {
+			int state = keySource.poll(frame) & 0xFFFF;
+
+			released = keys & ~state;
+			keys = state;
+		}
+
+		int executed = 0;
+
+		// Go back to the Fx0A once there's a key for it
+		if(waitingForKey && released != 0)
+			waitingForKey = false;
+
+		if(!waitingForKey)
+			executed = run(ipf);
+
+		if(metrics != null)
+			count(timed, executed);
+
+		tickTimers();
+		frame++;
+
+		return executed;
 	}
 
 	/*
-		Limit the number of instructions that can run in a given time
-		frame.
+		Hands the frame's counts to the metrics and records the JFR
+		events. timed says whether the frame event was begun.
+	*/
+	private void count(boolean timed, int executed) {
+		metrics.frame(familyCounts, executed);
+
+		// A restore can end a wait too
+		if(keyWait != null && !waitingForKey) {
+			metrics.keyWait(System.nanoTime() - keyWaitStart);
+
+			keyWait.frames = frame - keyWaitFrame;
+			keyWait.commit();
+			keyWait = null;
+		}
+		else if(keyWait == null && waitingForKey) {
+			keyWait = new KeyWaitEvent();
+			keyWait.begin();
+			keyWait.pc = PC;
+			keyWaitStart = System.nanoTime();
+			keyWaitFrame = frame;
+		}
 
-		Algorithm from StackOverflow (slightly modified for milliseconds)
-		http://stackoverflow.com/questions/667508/whats-a-good-rate-limiting-algorithm
+		if(timed) {
+			// A reused event keeps its last duration unless it's
+			// ended again
+			frameEvent.end();
+			frameEvent.frame = frame;
+			frameEvent.instructions = executed;
+			frameEvent.waitingForKey = waitingForKey;
+			frameEvent.commit();
+		}
+	}
+
+	/*
+		Whether running frames would change nothing but the frame
+		count: the core is waiting for a key and both timers have run
+		out. Whoever runs the core can stop until the keys change.
 	*/
-	public boolean limiter() {
-		// Get the current number of milliseconds that have passed
-		// since an irrelevant amount of time
-		current = System.currentTimeMillis();
-		
-		//System.out.println("Current: " + current);
-		// Difference between our two clock times
-		passed = current - last_checked;
-		
-		//if(passed > 0)
-		//	System.out.println("Passed: " + passed);
-		
-		last_checked = current;
-		allowance += passed * (rate / per);
+	public boolean isIdle() {
+		return waitingForKey && delay_timer == 0 && sound_timer == 0;
+	}
 
-		if(allowance > rate)
-			allowance = rate;
+	/*
+		Counts frames as run without running them. Only the same as
+		running them while the core is idle and the keys don't change.
+	*/
+	public void skipFrames(long count) {
+		frame += count;
 
-		if(allowance < 1.0) {
-			//System.out.println("LIMITED");
-			return false;
+		// Idle frames are silent, keep offline sound in step
+		if(audio != NullAudioSink.INSTANCE) {
+			for(long skipped = 0; skipped < count; skipped++)
+				audio.frame(false);
 		}
-		else
+	}
+
+	/*
+		Draws the n-byte sprite at I at (Vx, Vy), setting VF on
+		collision. Sprites are clipped, not wrapped.
+	*/
+	void draw(int x, int y, int n) {
+		// Collision flag
+		V[0xF] = 0;
+
+		// X+Y locations are in the V registers
+		int xLocation = (V[x] & 0xFF);
+		int yLocation = (V[y] & 0xFF);
+
+		for(int lineY = 0; lineY < n; lineY++)
 		{
-			allowance -= 1.0;
-			return true;
+			int pixel = memory[I + lineY];
+
+			int row = yLocation + lineY;
+			if(row > 31)
+				continue;
+
+			// Line the sprite byte up with its column. Pixels
+			// shifted past the right edge fall off.
+			long bits = ((long)(pixel & 0xFF)) << 56;
+			bits = (xLocation > 63) ? 0 : (bits >>> xLocation);
+
+			if((graphics[row] & bits) != 0)
+				V[0xF] = 1;
+			graphics[row] ^= bits;
+
+			if(bits != 0)
+				dirtyRows |= 1 << row;
 		}
 	}
 
 	/*
-		The controller of our interpreter's execution.
+		Clears the display.
+	*/
+	void clearScreen() {
+		for(int row = 0; row < graphics.length; row++)
+			graphics[row] = 0;
+		dirtyRows = -1;
+	}
 
-		This will implement instruciton limiting, fetch opcodes from
-		memory, dispatch instruction execution, and update the delay
-		and sound timers.
+	/*
+		Pushes PC and jumps to a subroutine.
+	*/
+	void call(int address) {
+		stack[SP] = PC;
+		SP++;
+
+		PC = address;
+	}
+
+	/*
+		Pops the return address and carries on after the call.
+	*/
+	void ret() {
+		SP--;
+		PC = stack[SP];
+
+		PC += 2;
+	}
+
+	/*
+		Stores the BCD representation of Vx at I, I+1 and I+2.
+	*/
+	void storeBCD(int x) {
+		// The AND is to cast the byte into an unsigned state
+		int value = (V[x] & 0xFF);
+
+		// Hundreds, tens and ones go in I, I+1 and I+2
+		memory[I] = (byte)(value / 100);
+		memory[I + 1] = (byte)((value / 10) % 10);
+		memory[I + 2] = (byte)(value % 10);
+
+		// We may have just written over code
+		invalidate(I, 3);
+	}
+
+	/*
+		Stores V0 through Vx in memory starting at I.
+	*/
+	void storeRegisters(int x) {
+		for(int counter = 0; counter <= x; counter++)
+			memory[I + counter] = V[counter];
+
+		// We may have just written over code
+		invalidate(I, x + 1);
+	}
+
+	/*
+		Loads V0 through Vx from memory starting at I.
+	*/
+	void loadRegisters(int x) {
+		for(int counter = 0; counter <= x; counter++)
+			V[counter] = memory[I + counter];
+	}
+
+	/*
+		Whether the key numbered by a register is held this frame.
+	*/
+	boolean isHeld(byte vx) {
+		int key = vx & 0xFF;
+
+		return key < 16 && (keys & (1 << key)) != 0;
+	}
+
+	/*
+		Updates the delay and sound timers. Called once per frame.
+	*/
+	void tickTimers() {
+		if(delay_timer > 0)
+		{
+			delay_timer--;
+		}
+
+		if(sound_timer > 0)
+		{
+			sound_timer--;
+		}
+
+		// The beeper sounds for as long as the timer is running
+		audio.frame(sound_timer > 0);
+	}
+
+	/*
+		Fetches, decodes and executes a single instruction.
+
+		Timers are left alone, they're updated once per frame by
+		runFrame().
 	*/
 	public void cycle() {
-		// Do instruction limiting so we don't run at light speed
-		if(!limiter())
-			return;
+		// Get the pre-decoded instruction at PC
+		Instruction inst = fetch();
+		Opcode = inst.opcode;
+
+		if(Trace.ENABLED)
+			traceInstruction();
+
+		if(Profiler.ENABLED)
+			profiler.count(PC);
+
+		if(metrics != null)
+			familyCounts[(Opcode >> 12) & 0xF]++;
+
+		// Main execution switch
+		Execute(inst);
+	}
+
+	/*
+		Writes the state of the core to the trace before the
+		instruction at PC runs.
+	*/
+	private void traceInstruction() {
+		trace.record(PC, Opcode, I, V, delay_timer, sound_timer);
+	}
+
+	/*
+		Returns the instruction trace, or null if tracing is off.
+	*/
+	public Trace getTrace() {
+		return trace;
+	}
+
+	/*
+		Returns the profiler, or null if profiling is off.
+	*/
+	public Profiler getProfiler() {
+		return profiler;
+	}
+
+	/*
+		Returns the decoded instruction at PC.
+
+		Instructions are decoded the first time their address is
+		executed and cached until something writes over them.
+	*/
+	Instruction fetch() {
+		return decodedAt(PC);
+	}
 
-		// If we've hit the instruction limit, reset count so that
-		// the timers can be updated
-		if(instruction_count == 5)
-			instruction_count = 0;
+	/*
+		Returns the decoded instruction at an address.
+	*/
+	Instruction decodedAt(int address) {
+		if(!cacheDecoded)
+			return Instruction.decode(opcodeAt(address));
 
-		System.out.println(String.format("\n\nPC@%x: %x; I: %x", PC, memory[PC], I));
+		Instruction inst = decoded[address >> PAGE_SHIFT]
+			[address & (PAGE_SIZE - 1)];
+
+		if(inst == null) {
+			inst = Instruction.decode(opcodeAt(address));
+			ownPage(address >> PAGE_SHIFT)[address & (PAGE_SIZE - 1)] = inst;
+		}
 
+		return inst;
+	}
+
+	/*
+		Reads the 16-bit opcode stored at the passed address.
+	*/
+	int opcodeAt(int address) {
 		/*
 			Java has no unsigned support and the conversion from
 			bytes to shorts can get messed up so we're going to
 			step around the issue here.
 		*/
-		int msb, lsb, total;
+		int msb, lsb;
 
-		msb = (((int)memory[PC]) & 0xFF);
-		lsb = (((int)memory[PC + 1]) & 0xFF);
+		msb = (((int)memory[address]) & 0xFF);
+		lsb = (((int)memory[address + 1]) & 0xFF);
 
-		// Get opcode
-		//Opcode = (short)((memory[PC] << 8) | memory[PC + 1]);
-		total = ((msb << 8) | lsb);
-		Opcode = (short)total;
-		
-		System.out.println("\tOp: " + String.format("%x", Opcode));
+		return ((msb << 8) | lsb);
+	}
 
-		// Main execution switch
-		Execute(Opcode);
+	/*
+		Called whenever memory is written. Drops cached instructions
+		that overlap the passed memory range and marks its pages as
+		changed since the last snapshot.
 
-		// Update timers
-		// These only fire when instruction count is zero as this
-		// allows us to limit the Hz that the interpreter runs at
-		if(instruction_count == 0) {
-			if(delay_timer > 0)
-			{
-				delay_timer--;
-			}
+		An instruction is two bytes long, so the one starting just
+		before the range is affected too.
+	*/
+	void invalidate(int address, int length) {
+		written(address, length);
 
-			if(sound_timer > 0)
-			{
-				sound_timer--;
+		int start = Math.max(address - 1, 0);
+		int end = Math.min(address + length, memory.length);
+
+		for(int addr = start; addr < end; addr++) {
+			Instruction[] page = decoded[addr >> PAGE_SHIFT];
+
+			if(page[addr & (PAGE_SIZE - 1)] != null)
+				ownPage(addr >> PAGE_SHIFT)[addr & (PAGE_SIZE - 1)] = null;
+		}
+	}
 
-				if(sound_timer > 0)
-				{
-					System.out.println("SoundT: " + sound_timer);
-					sound.setPlaying(true);
+	/*
+		Everything invalidate() does except dropping instructions.
+	*/
+	private void written(int address, int length) {
+		untouched = false;
+
+		int first = Math.max(address, 0) / PAGE_SIZE;
+		int last = Math.min(address + length - 1, memory.length - 1) / PAGE_SIZE;
+
+		for(int page = first; page <= last; page++)
+			dirtyPages |= 1 << page;
+
+		if(recompiler != null)
+			recompiler.invalidate(address, length);
+
+		if(aot != null && aot.overlapsCode(address, length))
+			aot = null;
+	}
+
+	/*
+		Returns a decoded page this core can write to, copying it
+		first if it's shared.
+	*/
+	private Instruction[] ownPage(int page) {
+		if((ownedPages & (1 << page)) == 0) {
+			decoded[page] = decoded[page].clone();
+			ownedPages |= 1 << page;
+		}
+
+		return decoded[page];
+	}
+
+	/*
+		Turns the pre-decoded instruction cache on or off.
+
+		With the cache off every instruction is decoded as it's
+		fetched, which is only useful for measuring the cache.
+	*/
+	public void setDecodeCache(boolean enabled) {
+		cacheDecoded = enabled;
+		Arrays.fill(decoded, NO_INSTRUCTIONS);
+		ownedPages = 0;
+	}
+	
+	/*
+		Turns the block recompiler on or off.
+
+		Only run() uses compiled blocks; cycle() always interprets one
+		instruction.
+	*/
+	public void setRecompiling(boolean enabled) {
+		recompiler = enabled ? new Recompiler() : null;
+	}
+
+	/*
+		Sets where keys come from, null for none.
+	*/
+	public void setKeySource(KeySource source) {
+		keySource = source;
+	}
+
+	/*
+		Sets where instruction counts and frame statistics go, null
+		to stop counting. Many cores can share one Metrics.
+	*/
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+		Arrays.fill(familyCounts, 0);
+		keyWait = null;
+	}
+
+	/*
+		Sets where sound goes, null for nowhere.
+	*/
+	public void setAudioSink(AudioSink sink) {
+		audio = (sink != null) ? sink : NullAudioSink.INSTANCE;
+	}
+
+	/*
+		Frames run since reset.
+	*/
+	public long getFrame() {
+		return frame;
+	}
+
+	/*
+		Runs up to budget instructions back to back, with no
+		instruction limiting and no timer updates. Returns the number
+		of instructions that ran.
+
+		Code is handed to the recompiler when it's on, as long as the
+		whole block fits in what's left of the budget.
+	*/
+	public int run(int budget) {
+		int executed = 0;
+
+		// A frame can start at the top of a wait loop
+		if(canSkip())
+			executed += skipTimerWait(budget);
+
+		while(executed < budget && !waitingForKey) {
+			// Translated and compiled code can't be traced or
+			// profiled an instruction at a time
+			if(aot != null && !Trace.ENABLED && !Profiler.ENABLED) {
+				int ran = aot.run(this, V, budget - executed);
+
+				if(ran > 0) {
+					executed += ran;
+					continue;
 				}
-				else
-				{
-					if(sound.isPlaying())
-						sound.setPlaying(false);
+			}
+
+			if(recompiler != null && !Trace.ENABLED && !Profiler.ENABLED) {
+				Recompiler.Block block = recompiler.blockAt(this, PC);
+
+				if(block != null && block.length <= budget - executed) {
+					executed += block.run(this, V, budget - executed);
+
+					// Skipping a wait loop is exact wherever it's done,
+					// it's only worth looking for after a jump
+					if(block.endsInJump && canSkip())
+						executed += skipTimerWait(budget - executed);
+
+					continue;
 				}
 			}
+
+			cycle();
+			executed++;
+
+			// Wait loops are entered by jumping back to their top
+			if((Opcode & 0xF000) == 0x1000 && canSkip())
+				executed += skipTimerWait(budget - executed);
+		}
+
+		return executed;
+	}
+
+	/*
+		Whether wait loops can be skipped. Traces and profiles want to
+		see every instruction.
+	*/
+	private boolean canSkip() {
+		return skipTimerWaits && !Trace.ENABLED && !Profiler.ENABLED;
+	}
+
+	/*
+		Skips the rest of the frame if PC is at the top of a loop
+		waiting on the delay timer:
+
+			loop:	LD Vx, DT
+				SE Vx, kk	(or SNE Vx, kk)
+				JP loop
+
+		The delay timer only changes between frames, so once the
+		skip doesn't leave the loop it never will this frame. A jump
+		to itself, which ROMs halt with, is skipped the same way.
+
+		Every instruction that would have run is accounted for, PC
+		and Vx end up where running them would have left them.
+		Returns the number of instructions skipped, 0 if PC isn't at
+		such a loop.
+	*/
+	int skipTimerWait(int budget) {
+		if(budget <= 0 || PC + 5 >= memory.length)
+			return 0;
+
+		Instruction load = decodedAt(PC);
+
+		if(load.type == Instruction.JP && load.nnn == PC) {
+			Opcode = load.opcode;
+
+			if(metrics != null)
+				familyCounts[0x1] += budget;
+
+			return budget;
+		}
+
+		if(load.type != Instruction.LD_VX_DT)
+			return 0;
+
+		Instruction test = decodedAt(PC + 2);
+		Instruction jump = decodedAt(PC + 4);
+
+		if(test.x != load.x || jump.type != Instruction.JP ||
+			jump.nnn != PC)
+		{
+			return 0;
 		}
 
-		// Update instruction count
-		instruction_count++;
+		boolean equal = (byte)delay_timer == (byte)test.kk;
+		boolean loops;
+
+		if(test.type == Instruction.SE_BYTE)
+			loops = !equal;
+		else if(test.type == Instruction.SNE_BYTE)
+			loops = equal;
+		else
+			loops = false;
+
+		if(!loops)
+			return 0;
+
+		// Three instructions a time round, the last time round may be
+		// cut short
+		V[load.x] = (byte)delay_timer;
+		PC += (budget % 3) * 2;
+		Opcode = (budget % 3 == 1) ? load.opcode :
+			(budget % 3 == 2) ? test.opcode : jump.opcode;
+
+		if(metrics != null) {
+			familyCounts[0xF] += (budget + 2) / 3;
+			familyCounts[(test.opcode >> 12) & 0xF] += (budget + 1) / 3;
+			familyCounts[0x1] += budget / 3;
+		}
+
+		return budget;
+	}
+
+	/*
+		Turns skipping loops that wait on the delay timer on or off.
+		The results are the same either way, it's on unless measuring.
+	*/
+	public void setTimerWaitSkipping(boolean enabled) {
+		skipTimerWaits = enabled;
+	}
+
+	/*
+		Turns running the ROM's ahead of time translation on or off.
+		On by default; it only does anything when AotCompiler's jar
+		for the ROM is on the classpath.
+	*/
+	public void setPrecompiled(boolean enabled) {
+		usePrecompiled = enabled;
+		checkPrecompiled();
+	}
+
+	/*
+		Whether the ROM's ahead of time translation is in use.
+	*/
+	public boolean isPrecompiled() {
+		return aot != null;
+	}
+
+	private void checkPrecompiled() {
+		aot = (usePrecompiled && precompiled != null &&
+			precompiled.matches(memory)) ? precompiled : null;
 	}
 	
+	/*
+		Decodes and executes a raw opcode.
+	*/
+	void Execute(short OP) {
+		Execute(Instruction.decode(OP));
+	}
+
 	/*
 		The executer of instructions.
 
-		This method receives the opcode of an instruction and
+		This method receives a decoded instruction and
 		interprets/executes it.
 	*/
-	private void Execute(short OP) {
+	private void Execute(Instruction inst) {
 		/*
 			These are used for code cleanliness and convenience.
 
 			The opcodes have the instruciton arguments built into
-			them and we need to extract them.
+			them, the decoder has already extracted them for us.
 
 			Example:
 
 			Opcode 0x1214(0x1NNN): Jump to address NNN(214)
 			Not all will be used for every instruction
 		*/
-		int x = ((OP & 0x0F00) >> 8);
-		int y = ((OP & 0x00F0) >> 4);
-		int kk = (OP & 0x00FF);
-		int nnn = (OP & 0x0FFF);
+		int x = inst.x;
+		int y = inst.y;
+		int kk = inst.kk;
+		int nnn = inst.nnn;
 
-		//System.out.println(String.format("x: %x, y: %x, kk: %x, nnn: %x",
-		//	x, y, kk, nnn));
-
-		// Debug: Print V[x] registers
-		for(int vx = 0; vx < 16; vx++)
+		// Begin interpreter, dispatch on the decoded handler
+		switch(inst.type) {
+		
+		case Instruction.CLS:
 		{
-			if((vx % 8) == 0)
-				System.out.println("\n\t\t");
+			/*
+			 * 00E0 - CLS
+			 * Clear the display.
+			 */
+
+			clearScreen();
 
-			System.out.print("V["+vx+"] = " +
-				String.format("%x ", V[vx]));
+			PC += 2;
+			break;
 		}
 
-		// Begin interpreter (get most significant bit)
-		switch(OP & 0xF000) {
-		
-		// Instructions beggining with 0
-		case 0x0000:
+		case Instruction.RET:
 		{
-			if(OP == 0x00E0) {
-				/*
-				 * 00E0 - CLS
-				 * Clear the display.
-				 */
-				
-				for(int pixelX = 0; pixelX < 64; pixelX++)
-				{
-					for(int pixelY = 0; pixelY < 32; pixelY++)
-						graphics[pixelX][pixelY] = 0;
-				}
+			/*
+			 * 00EE - RET
+			 * Return from a subroutine.
+			 */
 
-				PC += 2;
-			}	
-			else if(OP == 0x00EE) {
-				/*
-				 * 00EE - RET
-				 * Return from a subroutine.
-				 */
-				
-				SP--;
-				//System.out.println(String.format("Popb: %x", PC));
-				PC = stack[SP];
-				//System.out.println(String.format("Popa: %x", PC));
+			ret();
+			break;
+		}
 
-				PC += 2;
-			}
-			else {
-				System.out.println("This instruction is to be ignored");
-			}
-			
+		case Instruction.SYS:
+		{
+			// This instruction is to be ignored
 			break;
 		}
 		
-		// Instructions beginning with 1
-		case 0x1000:
+		case Instruction.JP:
 		{
 			/*
 			 * 1nnn - JP addr
 			 * Jump to location nnn.
 			 */
 			
-			PC = (short)(OP & 0x0FFF);
+			PC = nnn;
 			
 			break;
 		}
 			
-		// Instructions beginning with 2
-		case 0x2000:
+		case Instruction.CALL:
 		{
 			/*
 			 * 2nnn - CALL addr
 			 * Call subroutine at nnn.
 			 */
-			//System.out.println("2000b: SP: " + SP + ", (SP): " + String.format("%x", SP, stack[SP]));
-			stack[SP] = PC;
-			SP++;
-			//System.out.println("2000b: SP: " + SP + ", (SP): " + String.format("%x", SP, stack[SP]));
 
-			PC = (short)(OP & 0x0FFF);
+			call(nnn);
 			
 			break;
 		}
 		
-		// Instructions beginning with 3
-		case 0x3000:
+		case Instruction.SE_BYTE:
 		{
 			/*
 			 * 3xkk - SE Vx, byte
 			 * Skip next instruction if Vx = kk.
 			 */
-			//System.out.println(String.format("3000: Vx: %x; kk: %x", V[x], kk));
 	
-			if(V[x] == (byte)kk) {
-				//System.out.println("Skipped");
+			if(V[x] == (byte)kk)
 				PC += 4;
-			}
-			else {
-				//System.out.println("Not skipped");
+			else
+				PC += 2;
+			
+			break;
+		}
+		
+		case Instruction.SNE_BYTE:
+		{
+			/*
+			 * 4xkk - SNE Vx, byte
+			 * Skip next instruction if Vx != kk.
+			 */
+			
+			if(V[x] != (byte)kk)
+				PC += 4;
+			else
 				PC += 2;
-			}
 			
 			break;
 		}
 		
-		// Instructions beginning with 4
-		case 0x4000:
+		case Instruction.SE_REG:
+		{
+			/*
+			 * 5xy0 - SE Vx, Vy
+			 * Skip next instruction if Vx = Vy.
+			 */
+			
+			if(V[x] == V[y])
+				PC += 4;
+			else
+				PC += 2;
+			
+			break;
+		}
+		
+		case Instruction.LD_BYTE:
+		{
+			/*
+			 * 6xkk - LD Vx, byte
+			 * Set Vx = kk.
+			 */
+
+			V[x] = (byte)kk;
+
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.ADD_BYTE:
+		{
+			/*
+			 * 7xkk - ADD Vx, byte
+			 * Set Vx = Vx + kk.
+			 */
+
+			V[x] = (byte)(V[x] + kk);
+			
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.LD_REG:
+		{
+			/*
+			 * 8xy0 - LD Vx, Vy
+			 * Set Vx = Vy.
+			 */
+			
+			V[x] = V[y];
+
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.OR:
+		{
+			/*
+			 * 8xy1 - OR Vx, Vy
+			 * Set Vx = Vx OR Vy.
+			 */
+			
+			V[x] = (byte)(V[x] | V[y]);
+			
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.AND:
 		{
 			/*
-			 * 4xkk - SNE Vx, byte
-			 * Skip next instruction if Vx != kk.
+			 * 8xy2 - AND Vx, Vy
+			 * Set Vx = Vx AND Vy.
 			 */
-			//System.out.println(String.format("4000: Vx: %x, kk: %x", V[x], kk));
 			
-			if(V[x] != (byte)kk) {
-				//System.out.println("Skipped");
-				PC += 4;
-			}
-			else {
-				//System.out.println("Not skipped");
-				PC += 2;
-			}
+			V[x] = (byte)(V[x] & V[y]);
 			
+			PC += 2;
 			break;
 		}
 		
-		// Instructions beginning with 5
-		case 0x5000:
+		case Instruction.XOR:
 		{
 			/*
-			 * 5xy0 - SE Vx, Vy
-			 * Skip next instruction if Vx = Vy.
+			 * 8xy3 - XOR Vx, Vy
+			 * Set Vx = Vx XOR Vy.
 			 */
-			//System.out.println(String.format("Vx: %x; Vy: %x", V[x], V[y]));
 			
-			if(V[x] == V[y]) {
-				//System.out.println("Skipped");
-				PC += 4;
-			}
-			else {
-				//System.out.println("Not skipped");
-				PC += 2;
-			}
+			V[x] ^= V[y];
 			
+			PC += 2;
 			break;
 		}
 		
-		// Instructions beginning with 6
-		case 0x6000:
+		case Instruction.ADD_REG:
 		{
 			/*
-			 * 6xkk - LD Vx, byte
-			 * Set Vx = kk.
+			 * 8xy4 - ADD Vx, Vy
+			 * Set Vx = Vx + Vy, set VF = carry.
 			 */
-			//System.out.println(String.format("DBG6000: kk: %x", kk));			
-
-			V[x] = (byte)kk;
-
+			
+			V[x] = (byte)(V[x] + V[y]);
+			
+			if((V[x] + V[y]) > 255)
+				V[0xF] = 1;
+			else
+				V[0xF] = 0;
+			
 			PC += 2;
 			break;
 		}
 		
-		// Instructions beginning with 7
-		case 0x7000:
+		case Instruction.SUB:
 		{
 			/*
-			 * 7xkk - ADD Vx, byte
-			 * Set Vx = Vx + kk.
+			 * 8xy5 - SUB Vx, Vy
+			 * Set Vx = Vx - Vy, set VF = NOT borrow.
 			 */
-			//System.out.println(String.format("7000b: %x, kk: %x", V[x], kk));
-
-			V[x] = (byte)(V[x] + kk);
-			//System.out.println(String.format("7000a: %x, kk: %x", V[x], kk));
+				
+			if(V[x] > V[y])
+				V[0xF] = 1;
+			else
+				V[0xF] = 0;
+			
+			V[x] = (byte)(V[x] - V[y]);
 			
 			PC += 2;
 			break;
 		}
 		
-		// Instructions beginning with 8
-		case 0x8000:
+		case Instruction.SHR:
 		{
-			// Some Opcodes are differentiated by the last digit
-			int mask = (OP & 0xF);
-
-			//System.out.println(String.format("DBG: 8000: Mask: %x", mask));
-			
-			switch(mask) {
-			case 0x0:
-			{
-				/*
-				 * 8xy0 - LD Vx, Vy
-				 * Set Vx = Vy.
-				 */
-				
-				//System.out.println(String.format("8000: Vx: %x Vy: %x", V[x], V[y]));
-				V[x] = V[y];
+			/*
+			 * 8xy6 - SHR Vx {, Vy}
+			 * Set Vx = Vx SHR 1.
+			 */
 
-				break;
-			}
-			
-			case 0x1:
-			{
-				/*
-				 * 8xy1 - OR Vx, Vy
-				 * Set Vx = Vx OR Vy.
-				 */
-				
-				V[x] = (byte)(V[x] | V[y]);
-				
-				break;
-			}
+			// Set carry flag if LSb of Vx is set
+			if((V[x] & 0x1) == 1)
+				V[0xF] = 1;
+			else
+				V[0xF] = 0;
 			
-			case 0x2:
-			{
-				/*
-				 * 8xy2 - AND Vx, Vy
-				 * Set Vx = Vx AND Vy.
-				 */
-				
-				//System.out.println(String.format("8003b: Vx: %x Vy: %x", V[x], V[y]));
-				V[x] = (byte)(V[x] & V[y]);
-				//System.out.println(String.format("8003a: Vx: %x Vy: %x", V[x], V[y]));
-				
-				break;
-			}
+			V[x] >>= 1;
 			
-			case 0x3:
-			{
-				/*
-				 * 8xy3 - XOR Vx, Vy
-				 * Set Vx = Vx XOR Vy.
-				 */
-				
-				V[x] ^= V[y];
-				
-				break;
-			}
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.SUBN:
+		{
+			/*
+			 * 8xy7 - SUBN Vx, Vy
+			 * Set Vx = Vy - Vx, set VF = NOT borrow.
+			 */
 			
-			case 0x4:
-			{
-				/*
-				 * 8xy4 - ADD Vx, Vy
-				 * Set Vx = Vx + Vy, set VF = carry.
-				 */
-				
-				V[x] = (byte)(V[x] + V[y]);
-				
-				if((V[x] + V[y]) > 255)
-					V[0xF] = 1;
-				else
-					V[0xF] = 0;
-				
-				break;
-			}
+			V[0xF] = (V[y] > V[x]) ? (byte)1 : 0;
 			
-			case 0x5:
-			{
-				/*
-				 * 8xy5 - SUB Vx, Vy
-				 * Set Vx = Vx - Vy, set VF = NOT borrow.
-				 */
-					
-				if(V[x] > V[y])
-					V[0xF] = 1;
-				else
-					V[0xF] = 0;
-				
-				V[x] = (byte)(V[x] - V[y]);
-				
-				break;
-			}
+			V[x] = (byte)(V[y] - V[x]);
 			
-			case 0x6:
-			{
-				/*
-				 * 8xy6 - SHR Vx {, Vy}
-				 * Set Vx = Vx SHR 1.
-				 */
-
-				//System.out.println(String.format("DBG8006: V[x]: %x", V[x]));
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.SHL:
+		{
+			/*
+			 * 8xyE - SHL Vx {, Vy}
+			 * Set Vx = Vx SHL 1.
+			 */
 
-				// Set carry flag if LSb of Vx is set
-				if((V[x] & 0x1) == 1) {
-					//System.out.println("DBG8006: Set");
-					V[0xF] = 1;
-				}
-				else {
-					//System.out.println("DBG8006: Not set");
-					V[0xF] = 0;
-				}
-				
-				V[x] >>= 1;
-				
-				break;
-			}
+			// Set flag register if MSb of Vx is set
+			V[0xF] = (((V[x] & 0x80) >> 7) == 1) ? (byte)1 : 0;
 			
-			case 0x7:
-			{
-				/*
-				 * 8xy7 - SUBN Vx, Vy
-				 * Set Vx = Vy - Vx, set VF = NOT borrow.
-				 */
-				
-				V[0xF] = (V[y] > V[x]) ? (byte)1 : 0;
-				
-				V[x] = (byte)(V[y] - V[x]);
-				
-				break;
-			}
+			V[x] <<= 1;
 			
-			case 0xE:
-			{
-				/*
-				 * 8xyE - SHL Vx {, Vy}
-				 * Set Vx = Vx SHL 1.
-				 */
-
-				//System.out.println(String.format("800E: V[x]&0x80: %x", ((V[x] & 0x80)>>7)));
+			PC += 2;
+			break;
+		}
 
-				// Set flag register if MSb of Vx is set
-				V[0xF] = (((V[x] & 0x80) >> 7) == 1) ? (byte)1 : 0;
-				
-				V[x] <<= 1;
-				
-				break;
-			}
-			
-			// End masking
-			}
-			
-		PC += 2;
-		break;
-		// End 0x8XXX
+		case Instruction.ALU_NOP:
+		case Instruction.MISC_NOP:
+		{
+			// Unknown 0x8 and 0xF instructions are stepped over
+			PC += 2;
+			break;
 		}
 		
-		// Instructions beginning with 9
-		case 0x9000:
+		case Instruction.SNE_REG:
 		{
 			/*
 			 * 9xy0 - SNE Vx, Vy
 			 * Skip next instruction if Vx != Vy.
 			 */
-			//System.out.println(String.format("Vx: %x; Vy: %x", V[x], V[y]));
 			
-			if(V[x] == V[y]) {
-				//System.out.println("Not skipped");
+			if(V[x] == V[y])
 				PC += 2;
-			}
-			else {
-				//System.out.println("Skipped");
+			else
 				PC += 4;
-			}
 			
 			break;
 		}
 		
-		// Instructions beginning with A
-		case 0xA000:
+		case Instruction.LD_I:
 		{
 			/*
 			 * Annn - LD I, addr
 			 * Set I = nnn.
 			 */
-			
-			//System.out.println("0xA: nnn: " +
-			//	String.format("%x", nnn));
 
-			//System.out.println(String.format("I: %x", I));
 			I = (short)nnn;
-			//System.out.println(String.format("I: %x", I));
 			
 			PC += 2;
 			break;
 		}
 		
-		// Instructions beginning with B
-		case 0xB000:
+		case Instruction.JP_V0:
 		{
 			/*
 			 * Bnnn - JP V0, addr
@@ -695,22 +1334,20 @@ public class EmulatorCore {
 			break;
 		}
 		
-		// Instructions beginning with C
-		case 0xC000:
+		case Instruction.RND:
 		{
 			/*
 			 * Cxkk - RND Vx, byte
 			 * Set Vx = random byte AND kk.
 			 */
 			
-			V[x] = (byte)(gen.nextInt(255) & kk);
+			V[x] = (byte)(nextRandom(255) & kk);
 			
 			PC += 2;
 			break;
 		}
 		
-		// Instructions beginning with D
-		case 0xD000:
+		case Instruction.DRW:
 		{
 			/*
 			 * Dxyn - DRW Vx, Vy, nibble
@@ -718,301 +1355,179 @@ public class EmulatorCore {
 			 * set VF = collision.
 			 */
 
-			// Number of bytes in the sprite (vertically)
-			int n = (OP & 0xF);
+			draw(x, y, inst.n);
 
-			// Collision flag
-			V[0xF] = 0;
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.SKP:
+		{
+			/*
+			 * Ex9E - SKP Vx
+			 * Skip next instruction if key with the value of Vx
+			 * is pressed.
+			 */
 
-			// X+Y locations are in the V registers
-			int xLocation = (V[x] & 0xFF);
-			int yLocation = (V[y] & 0xFF);
-			//System.out.println(String.format("X:%x Y:%x", xLocation, yLocation));
-			//System.out.println(String.format("VX:%x VY:%x", V[x], V[y]));
+			if(isHeld(V[x]))
+				PC += 4;
+			else
+				PC += 2;
 
-			// Uncomment these String debug's if you want sprites
-			// written to console.
-			//String debug = "";
-			for(int lineY = 0; lineY < n; lineY++)
-			{
-				//debug = "";
-				//System.out.println("pixel: I: " + I + " lY: " + lineY);
-				int pixel = memory[I + lineY];
-				//System.out.println(String.format("Pixel: %x; %x", memory[I + lineY], (I+lineY)));
-				for(int lineX = 0; lineX < 8; lineX++)
-				{
-					// If this pixel is off, skip
-					if((pixel & (0x80 >> lineX)) != 0)
-					{
-						if((xLocation + lineX) > 63) {
-							//System.out.println("GFX: Skip Horizontal");
-							continue;
-						}
-						if((yLocation + lineY) > 31) {
-							//System.out.println("GFX: Skip Vertical");
-							continue;
-						}
-
-						/*System.out.println(String.format("GFXDBG: x+lx: %x; y+ly: %x",
-							(xLocation + lineX), (yLocation + lineY)));*/
-
-						if(graphics[(xLocation + lineX)][(yLocation + lineY)] == 1)
-							V[0xF] = 1;
-						graphics[(xLocation + lineX)][(yLocation + lineY)] ^= 1;
-
-						//debug += "*";
-					}
-
-					//debug += " ";
-				}
+			break;
+		}
 
-				//System.out.println("GFXDBG: " + debug);
-			}
+		case Instruction.SKNP:
+		{
+			/*
+			 * ExA1 - SKNP Vx
+			 * Skip next instruction if key with the value of Vx is
+			 * not pressed.
+			 */
+			
+			if(!isHeld(V[x]))
+				PC += 4;
+			else
+				PC += 2;
 
-			PC += 2;
+			break;
+		}
+
+		case Instruction.KEY_NOP:
+		{
+			// Unknown 0xE instructions don't move PC
 			break;
 		}
 		
-		// Instructions beginning with E
-		case 0xE000:
+		case Instruction.LD_VX_DT:
 		{
-			// 0xE instructions are differentiated by the
-			// least significant byte
-			short mask = (short)(OP & 0x00FF);
+			/*
+			 * Fx07 - LD Vx, DT
+			 * Set Vx = delay timer value.
+			 */
 			
-			if(mask == 0x9E) {
-				/*
-				 * Ex9E - SKP Vx
-				 * Skip next instruction if key with the value of Vx
-				 * is pressed.
-				 */
-
-				System.out.println("Key input #1");
-				
-				key = input.getInput();
-				
-				//System.out.println(String.format("Key#1: %x", key));
+			V[x] = (byte)delay_timer;
+			
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.LD_VX_K:
+		{
+			/*
+			 * Fx0A - LD Vx, K
+			 * Wait for a key press, store the value of the key in Vx.
+			 */
 
-				if(V[x] == key) {
-					PC += 4;
-					//System.out.println("Skipped");
-				}
-				else {
-					PC += 2;
-					//System.out.println("Not skipped");
-				}
+			// Stop here until a key is let go of, runFrame() comes
+			// back to this instruction then. Each release is only
+			// taken once.
+			if(released == 0) {
+				waitingForKey = true;
+				break;
 			}
-			else if(mask == 0xA1) {
-				/*
-				 * ExA1 - SKNP Vx
-				 * Skip next instruction if key with the value of Vx is
-				 * not pressed.
-				 */
-				
-				System.out.println("Key input #2");
-				
-				key = input.getInput();
 
-				//System.out.println(String.format("Key#2: %x, x: %x", key, V[x]));
-				//System.out.println("k: " + key + "x: " + x);
+			V[x] = (byte)Integer.numberOfTrailingZeros(released);
+			released &= released - 1;
 
-				if(V[x] != key) {
-					PC += 4;
-					//System.out.println("Skipped");
-				}
-				else {
-					PC += 2;
-					//System.out.println("Not skipped");
-				}
-			}
-			
-			//PC += 2;
+			PC += 2;
 			break;
 		}
 		
-		// Instructions beginning with F
-		case 0xF000:
+		case Instruction.LD_DT_VX:
 		{
-			// 0xF instructions differentiated by least
-			// significant byte
-			short mask = (short)(OP & 0x00FF);
-			switch(mask) {
+			/*
+			 * Fx15 - LD DT, Vx
+			 * Set delay timer = Vx.
+			 */
 			
-			case 0x07:
-			{
-				/*
-				 * Fx07 - LD Vx, DT
-				 * Set Vx = delay timer value.
-				 */
-				
-				V[x] = (byte)delay_timer;
-				
-				break;
-			}
+			delay_timer = (V[x] & 0xFF);
 			
-			case 0x0A:
-			{
-				/*
-				 * Fx0A - LD Vx, K
-				 * Wait for a key press, store the value of the key in Vx.
-				 */
-			
-				System.out.println("Key input #3");
-
-				do {
-					key = input.getInput();
-					
-					// Delay; Without this, oddities happen
-					// TL;DR inifinite loop causes VM to not get input
-					try {
-						Thread.sleep(10);
-					} catch(InterruptedException ex) {
-						Thread.currentThread().interrupt();
-					}
-				} while(key == -1);
-
-				V[x] = key;
-
-				// Better alternative method: simply repeat
-				// this instruction, caused bugs, TODO fix
-				/*key = input.getInput();
-
-				if(key == -1)
-					PC -= 2;*/
-				
-				break;
-			}
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.LD_ST_VX:
+		{
+			/*
+			 * Fx18 - LD ST, Vx
+			 * Set sound timer = Vx.
+			 */
 			
-			case 0x15:
-			{
-				/*
-				 * Fx15 - LD DT, Vx
-				 * Set delay timer = Vx.
-				 */
-				
-				delay_timer = (V[x] & 0xFF);
-				
-				break;
-			}
+			sound_timer = (V[x] & 0xFF);
 			
-			case 0x18:
-			{
-				/*
-				 * Fx18 - LD ST, Vx
-				 * Set sound timer = Vx.
-				 */
-				
-				sound_timer = (V[x] & 0xFF);
-				
-				break;
-			}
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.ADD_I_VX:
+		{
+			/*
+			 * Fx1E - ADD I, Vx
+			 * Set I = I + Vx.
+			 */
 			
-			case 0x1E:
-			{
-				/*
-				 * Fx1E - ADD I, Vx
-				 * Set I = I + Vx.
-				 */
-				
-				//System.out.println(String.format("1E: Vx: %x", V[x]));
-				I = (short)(I + V[x]);
-				
-				break;
-			}
+			I = (short)(I + V[x]);
 			
-			case 0x29:
-			{
-				/*
-				 * Fx29 - LD F, Vx
-				 * Set I = location of sprite(font) for digit Vx.
-				 */
-
-				// Each font sprite is held in memory starting
-				// at 0 and is 5 bytes wide.
-				I = (short)(V[x] * 5);
-				
-				break;
-			}
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.LD_F_VX:
+		{
+			/*
+			 * Fx29 - LD F, Vx
+			 * Set I = location of sprite(font) for digit Vx.
+			 */
+
+			// Each font sprite is held in memory starting
+			// at 0 and is 5 bytes wide.
+			I = (short)(V[x] * 5);
 			
-			case 0x33:
-			{
-				/*
-				 * Fx33 - LD B, Vx
-				 * Store BCD representation of Vx in memory locations I,
-				 * I+1, and I+2.
-				 */
-
-				// Convert byte to a BCD-like character array
-				// The AND is to cast the byte into an unsigned state
-				char temp[] = String.valueOf((int)(V[x] & 0xFF)).toCharArray();
-
-				// Not all values will convert to 3 BCD digits, so
-				// we need to set the others to zero
-				// The values go in order of: hundreds, tens, ones
-				char BCD[] = {0, 0, 0};
-
-				// Replace the zero'd BCD array with proper values, if applicable
-				for(int place = 0, count = 2; place < temp.length; place++, count--)
-				{
-					BCD[count] = temp[place];
-				}
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.LD_B_VX:
+		{
+			/*
+			 * Fx33 - LD B, Vx
+			 * Store BCD representation of Vx in memory locations I,
+			 * I+1, and I+2.
+			 */
 
-				// Finally place the BCD values in I, I+1, I+2
-				for(int count = 0; count < 3; count++)
-				{
-					// If the value is zero, just place it in
-					if(BCD[count] == 0)
-					{
-						memory[I + count] = 0;
-					}
-					else
-					{
-						// This doesn't seem to like it when the BCD is 0
-						memory[I + count] =
-							(byte)Character.getNumericValue(BCD[count]);
-					}
-					//System.out.print("FX33 " + memory[I + count] + " ");
-				}
+			storeBCD(x);
 
-				break;
-			}
-			
-			case 0x55:
-			{
-				/*
-				 * Fx55 - LD [I], Vx
-				 * Store registers V0 through Vx in memory starting at
-				 * location I.
-				 */
-				
-				for(int counter = 0; counter <= x; counter++)
-					memory[I + counter] = V[counter];
-				
-				break;
-			}
-			
-			case 0x65:
-			{
-				/*
-				 * Fx65 - LD Vx, [I]
-				 * Read registers V0 through Vx from memory starting at
-				 * location I.
-				 */
-
-				for(int counter = 0; counter <= x; counter++) {
-					System.out.println(String.format("DBG65: %x", memory[(I+counter)]));
-					V[counter] = memory[I + counter];
-				}
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.LD_MEM_VX:
+		{
+			/*
+			 * Fx55 - LD [I], Vx
+			 * Store registers V0 through Vx in memory starting at
+			 * location I.
+			 */
 
-				break;
-			}
-			
-			// End mask
-			}
-			
-		PC += 2;
-		break;
-		// End 0xF---
+			storeRegisters(x);
+
+			PC += 2;
+			break;
+		}
+		
+		case Instruction.LD_VX_MEM:
+		{
+			/*
+			 * Fx65 - LD Vx, [I]
+			 * Read registers V0 through Vx from memory starting at
+			 * location I.
+			 */
+
+			loadRegisters(x);
+
+			PC += 2;
+			break;
 		}
 		
 		} // End main switch
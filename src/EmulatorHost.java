@@ -0,0 +1,220 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+	Hosts many headless cores in one JVM, for fuzzing and training
+	runs that want tens of thousands of them.
+
+	Nothing a core doesn't have to own is per core: the font is one
+	static table, every core running a ROM shares its RomImage, and
+	a core's decoded instructions are the image's until it writes over
+	them, a page at a time. No core has a thread. The host steps them
+	all on a fixed pool of workers, one per processor, each taking its
+	own slice of the cores.
+
+	Usage: java EmulatorHost [-instances N] [-frames N] [-ipf N] ROM
+*/
+public class EmulatorHost {
+	static final int DEFAULT_INSTANCES = 10000;
+	static final int DEFAULT_FRAMES = 600;
+
+	private final ExecutorService workers;
+	private final int workerCount;
+
+	private final List<EmulatorCore> cores = new ArrayList<EmulatorCore>();
+
+	// What stopped each core, null while it's still running
+	private final List<RuntimeException> errors =
+		new ArrayList<RuntimeException>();
+
+	public EmulatorHost() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public EmulatorHost(int workerCount) {
+		this.workerCount = workerCount;
+		workers = Executors.newFixedThreadPool(workerCount);
+	}
+
+	/*
+		Adds a core running a ROM. Returns its number.
+	*/
+	public int add(RomImage image) {
+		cores.add(new EmulatorCore(image));
+		errors.add(null);
+
+		return cores.size() - 1;
+	}
+
+	public int size() {
+		return cores.size();
+	}
+
+	/*
+		The core with the passed number, to set a key source on, read
+		the display of, snapshot and so on. Only touch it between
+		calls to runFrames().
+	*/
+	public EmulatorCore get(int id) {
+		return cores.get(id);
+	}
+
+	/*
+		What stopped a core, or null if it's still running.
+	*/
+	public RuntimeException getError(int id) {
+		return errors.get(id);
+	}
+
+	/*
+		Runs every core for the passed number of frames and waits for
+		them all. A core that throws is stopped and left out from then
+		on. Returns the instructions run.
+	*/
+	public long runFrames(int frames, int ipf) throws InterruptedException {
+		List<Future<Long>> slices = new ArrayList<Future<Long>>();
+		int count = cores.size();
+
+		for(int worker = 0; worker < workerCount; worker++) {
+			int from = (int)((long)count * worker / workerCount);
+			int to = (int)((long)count * (worker + 1) / workerCount);
+
+			if(from < to)
+				slices.add(workers.submit(slice(from, to, frames, ipf)));
+		}
+
+		long instructions = 0;
+
+		for(Future<Long> slice : slices) {
+			try {
+				instructions += slice.get();
+			} catch(ExecutionException e) {
+				throw new IllegalStateException(e.getCause());
+			}
+		}
+
+		return instructions;
+	}
+
+	private Callable<Long> slice(final int from, final int to,
+		final int frames, final int ipf)
+	{
+		return new Callable<Long>() {
+			public Long call() {
+				long instructions = 0;
+
+				for(int id = from; id < to; id++)
+					instructions += run(id, frames, ipf);
+
+				return instructions;
+			}
+		};
+	}
+
+	/*
+		Runs one core. Running a core for all its frames in one go
+		keeps its state in cache; the results are the same as
+		interleaving frames between cores.
+	*/
+	private long run(int id, int frames, int ipf) {
+		if(errors.get(id) != null)
+			return 0;
+
+		EmulatorCore core = cores.get(id);
+		long instructions = 0;
+
+		try {
+			for(int frame = 0; frame < frames; frame++)
+				instructions += core.runFrame(ipf);
+		} catch(RuntimeException e) {
+			errors.set(id, e);
+		}
+
+		return instructions;
+	}
+
+	/*
+		Stops the workers. The cores stay readable.
+	*/
+	public void close() {
+		workers.shutdown();
+	}
+
+	public static void main(String[] args) throws Exception {
+		int instances = DEFAULT_INSTANCES;
+		int frames = DEFAULT_FRAMES;
+		int ipf = Scheduler.DEFAULT_IPF;
+		String rom = null;
+
+		for(int arg = 0; arg < args.length; arg++) {
+			if(args[arg].equals("-instances") && arg + 1 < args.length)
+				instances = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-frames") && arg + 1 < args.length)
+				frames = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-ipf") && arg + 1 < args.length)
+				ipf = Integer.parseInt(args[++arg]);
+			else
+				rom = args[arg];
+		}
+
+		if(rom == null) {
+			System.out.println("No ROM");
+			return;
+		}
+
+		RomImage image = RomImage.load(rom);
+		EmulatorHost host = new EmulatorHost();
+		Runtime runtime = Runtime.getRuntime();
+
+		System.gc();
+		long before = runtime.totalMemory() - runtime.freeMemory();
+
+		for(int i = 0; i < instances; i++)
+			host.add(image);
+
+		long start = System.nanoTime();
+		long instructions = host.runFrames(frames, ipf);
+		long nanos = System.nanoTime() - start;
+
+		System.gc();
+		long used = runtime.totalMemory() - runtime.freeMemory() - before;
+
+		int failed = 0;
+		for(int id = 0; id < host.size(); id++) {
+			if(host.getError(id) != null)
+				failed++;
+		}
+
+		System.out.println(String.format("%d instances on %d workers, " +
+			"%d frames each, %d failed", instances, host.workerCount, frames,
+			failed));
+		System.out.println(String.format("%.1f Minstr/s, %d bytes per instance",
+			instructions * 1e3 / nanos, used / instances));
+
+		host.close();
+	}
+}
@@ -0,0 +1,89 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/*
+	Read-only view of the core's VRAM.
+
+	The display is stored as one long per row. The leftmost pixel
+	(x = 0) is the most significant bit, so a row can be drawn by
+	walking it from the top bit down.
+*/
+public final class FrameBuffer {
+	public static final int WIDTH = 64;
+	public static final int HEIGHT = 32;
+
+	private final EmulatorCore core;
+
+	FrameBuffer(EmulatorCore core) {
+		this.core = core;
+	}
+
+	/*
+		Returns row y, one bit per pixel with x = 0 in bit 63.
+	*/
+	public long getRow(int y) {
+		return core.graphics[y];
+	}
+
+	/*
+		Whether the pixel at (x, y) is on.
+	*/
+	public boolean isSet(int x, int y) {
+		return (core.graphics[y] << x) < 0;
+	}
+
+	/*
+		Returns which rows have changed since the last call, one bit
+		per row with row y in bit y, and starts tracking afresh.
+
+		This is the only thing here that changes the core. It's meant
+		for the one display driver drawing this VRAM.
+	*/
+	public int takeDirtyRows() {
+		int dirty = core.dirtyRows;
+		core.dirtyRows = 0;
+
+		return dirty;
+	}
+
+	/*
+		64-bit FNV-1a hash of the display, for comparing runs.
+	*/
+	public long hash() {
+		long hash = 0xCBF29CE484222325L;
+
+		for(int y = 0; y < HEIGHT; y++) {
+			long row = core.graphics[y];
+
+			for(int b = 56; b >= 0; b -= 8) {
+				hash ^= (row >>> b) & 0xFF;
+				hash *= 0x100000001B3L;
+			}
+		}
+
+		return hash;
+	}
+
+	/*
+		Copies every row into dest, which needs room for HEIGHT rows.
+	*/
+	public void copyRows(long[] dest) {
+		System.arraycopy(core.graphics, 0, dest, 0, HEIGHT);
+	}
+}
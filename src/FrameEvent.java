@@ -0,0 +1,45 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+	JFR event for a frame run by a core with metrics turned on. The
+	event's duration is the time the frame's instructions took, not
+	counting the wait for the next frame.
+*/
+@Name("c8.Frame")
+@Label("Frame")
+@Category("CHIP-8")
+@Description("A frame of instructions run by an emulator core")
+class FrameEvent extends Event {
+	@Label("Frame")
+	long frame;
+
+	@Label("Instructions")
+	int instructions;
+
+	@Label("Waiting For Key")
+	boolean waitingForKey;
+}
@@ -1,4 +1,4 @@
-/* 
+/*
 	Copyright 2013 Charles O.
 	charles.0x4f@gmail.com
 	Github: https://github.com/charles-0x4f
@@ -20,17 +20,47 @@
 import javax.swing.JFrame;
 import java.awt.event.KeyListener;
 import java.awt.event.KeyEvent;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
 
 /*
 	Input class.
 
-	Listen for all keystrokes, if they're legal for Chip8, store the
-	last valid key and return it on request.
+	Listen for all keystrokes and keep which of the 16 Chip8 keys are
+	held down, one bit per key.
+
+	Key events come in on the EDT and the core reads keys from the
+	emulation thread, so the mask is only ever changed with atomic
+	bitwise updates and read with one volatile read. Nothing locks.
 */
-public class Input {
+public class Input implements KeySource {
 	JFrame frame;
-	private char key;
-	private byte hexKey = -1;
+
+	// Bit n is set while key n is held
+	private volatile int held;
+
+	// Keys pressed since the last poll, so a tap shorter than a frame
+	// still shows up as held for one frame
+	private volatile int tapped;
+
+	// Backspace held, play runs backwards
+	private volatile boolean rewinding;
+
+	// Run on every key event, to wake a parked scheduler
+	private volatile Runnable wakeup;
+
+	private static final VarHandle HELD;
+	private static final VarHandle TAPPED;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			HELD = lookup.findVarHandle(Input.class, "held", int.class);
+			TAPPED = lookup.findVarHandle(Input.class, "tapped", int.class);
+		} catch(ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
 
 	public Input(JFrame jFrame) {
 		frame = jFrame;
@@ -38,77 +68,30 @@ public class Input {
 		frame.addKeyListener(new KeyListener() {
 			@Override
 			public void keyPressed(KeyEvent e) {
-				key = e.getKeyChar();
-
-				//System.out.println("keyDBG: " + key);
-
-				/* 
-					Chip-8 Keyboard layout:
-					(1234)
-					123C
-					(QWER)
-					456D
-					(ASDF)
-					789E
-					(ZXCV)
-					A0BF
-
-					Probably a better way to do this?
-				*/
-				switch(Character.toLowerCase(key)) {
-				case '1':
-					hexKey = 0x01;
-					break;
-				case '2':
-					hexKey = 0x02;
-					break;
-				case '3':
-					hexKey = 0x03;
-					break;
-				case '4':
-					hexKey = 0x0C;
-					break;
-				case 'q':
-					hexKey = 0x04;
-					break;
-				case 'w':
-					hexKey = 0x05;
-					break;
-				case 'e':
-					hexKey = 0x06;
-					break;
-				case 'r':
-					hexKey = 0x0D;
-					break;
-				case 'a':
-					hexKey = 0x07;
-					break;
-				case 's':
-					hexKey = 0x08;
-					break;
-				case 'd':
-					hexKey = 0x09;
-					break;
-				case 'f':
-					hexKey = 0x0E;
-					break;
-				case 'z':
-					hexKey = 0x0A;
-					break;
-				case 'x':
-					hexKey = 0x00;
-					break;
-				case 'c':
-					hexKey = 0x0B;
-					break;
-				case 'v':
-					hexKey = 0x0F;
-					break;
+				if(e.getKeyCode() == KeyEvent.VK_BACK_SPACE)
+					rewinding = true;
+
+				int hexKey = keyIndex(e.getKeyCode());
+
+				if(hexKey != -1) {
+					HELD.getAndBitwiseOr(Input.this, 1 << hexKey);
+					TAPPED.getAndBitwiseOr(Input.this, 1 << hexKey);
 				}
+
+				wake();
 			}
 
 			@Override
 			public void keyReleased(KeyEvent e) {
+				if(e.getKeyCode() == KeyEvent.VK_BACK_SPACE)
+					rewinding = false;
+
+				int hexKey = keyIndex(e.getKeyCode());
+
+				if(hexKey != -1)
+					HELD.getAndBitwiseAnd(Input.this, ~(1 << hexKey));
+
+				wake();
 			}
 
 			@Override
@@ -118,19 +101,86 @@ public class Input {
 	}
 
 	/*
-		Return last valid input or -1 on error/none.
+		Sets something to run on every key event, null for nothing.
+	*/
+	public void setWakeup(Runnable runnable) {
+		wakeup = runnable;
+	}
+
+	private void wake() {
+		Runnable runnable = wakeup;
+
+		if(runnable != null)
+			runnable.run();
+	}
+
+	/*
+		Maps a keyboard key to its Chip8 key, or -1 if it isn't one.
+
+		Goes by key code rather than the character typed, which
+		changes with modifiers held: a key pressed with Ctrl up and
+		let go of with Ctrl down has to map to the same Chip8 key.
+
+		Chip-8 Keyboard layout:
+		(1234)
+		123C
+		(QWER)
+		456D
+		(ASDF)
+		789E
+		(ZXCV)
+		A0BF
+	*/
+	static int keyIndex(int keyCode) {
+		switch(keyCode) {
+		case KeyEvent.VK_1:
+			return 0x01;
+		case KeyEvent.VK_2:
+			return 0x02;
+		case KeyEvent.VK_3:
+			return 0x03;
+		case KeyEvent.VK_4:
+			return 0x0C;
+		case KeyEvent.VK_Q:
+			return 0x04;
+		case KeyEvent.VK_W:
+			return 0x05;
+		case KeyEvent.VK_E:
+			return 0x06;
+		case KeyEvent.VK_R:
+			return 0x0D;
+		case KeyEvent.VK_A:
+			return 0x07;
+		case KeyEvent.VK_S:
+			return 0x08;
+		case KeyEvent.VK_D:
+			return 0x09;
+		case KeyEvent.VK_F:
+			return 0x0E;
+		case KeyEvent.VK_Z:
+			return 0x0A;
+		case KeyEvent.VK_X:
+			return 0x00;
+		case KeyEvent.VK_C:
+			return 0x0B;
+		case KeyEvent.VK_V:
+			return 0x0F;
+		default:
+			return -1;
+		}
+	}
 
-		Clear the last inputed key afterword.
+	/*
+		Keys held now, plus any tapped since the last poll.
+	*/
+	public int poll(long frame) {
+		return held | (int)TAPPED.getAndSet(this, 0);
+	}
+
+	/*
+		Whether the rewind key is held down.
 	*/
-	public byte getInput()
-	{
-		/*
-			Clear key after getting got. Used for op 0xFX0A (wait
-				for key pressed and store in X)
-		*/
-		byte temp = hexKey;
-		hexKey = -1;
-
-		return temp;
+	public boolean isRewinding() {
+		return rewinding;
 	}
 }
@@ -0,0 +1,145 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/*
+	Records the keys a run sees, so InputReplay can play it back.
+
+	Sits between the core and its real key source and writes down the
+	key state every time it changes. The core only reads keys between
+	frames, so the frame number and state of each change is all it
+	takes to reproduce a run exactly.
+
+	File format, big-endian:
+
+		"C8IR"			magic
+		u1			version, 3
+		UTF			ROM path, as passed to the emulator
+		UTF			RomImage.getHash() of the ROM
+		varint			instructions per frame
+
+	then one record per change of key state:
+
+		varint			(frames since the last record << 1)
+		u2			keys held, bit n for key n
+
+	and finally, when the recording is closed:
+
+		varint			(frames since the last record << 1) | 1
+		u8			FrameBuffer.hash() at that frame
+
+	Varints are unsigned LEB128: 7 bits at a time, low bits first,
+	top bit set on every byte but the last.
+*/
+public class InputRecorder implements KeySource {
+	static final int MAGIC = 0x43384952;
+	static final int VERSION = 3;
+
+	private final KeySource source;
+	private final FrameBuffer display;
+	private final DataOutputStream out;
+
+	// State and frame of the last record written
+	private int state;
+	private long recorded;
+
+	// Last frame polled and the display as it was then
+	private long frame;
+	private long hash;
+
+	// First write that failed, recording stops there
+	private IOException error;
+
+	public InputRecorder(String file, String rom, RomImage image, int ipf,
+		KeySource source, FrameBuffer display) throws IOException
+	{
+		this.source = source;
+		this.display = display;
+
+		out = new DataOutputStream(new BufferedOutputStream(
+			new FileOutputStream(file)));
+
+		try {
+			out.writeInt(MAGIC);
+			out.writeByte(VERSION);
+			out.writeUTF(rom);
+			out.writeUTF(image.getHash());
+			writeVarint(out, ipf);
+		} catch(IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	/*
+		Passes the source's key state on, writing it down if it
+		changed.
+	*/
+	public synchronized int poll(long frame) {
+		int polled = source.poll(frame);
+
+		this.frame = frame;
+		hash = display.hash();
+
+		if(polled != state && error == null) {
+			try {
+				writeVarint(out, (frame - recorded) << 1);
+				out.writeShort(polled);
+			} catch(IOException e) {
+				error = e;
+			}
+
+			state = polled;
+			recorded = frame;
+		}
+
+		return polled;
+	}
+
+	/*
+		Ends the recording at the last frame polled, along with the
+		display at that frame so a replay can be checked against it.
+	*/
+	public synchronized void close() throws IOException {
+		try {
+			if(error != null)
+				throw error;
+
+			writeVarint(out, ((frame - recorded) << 1) | 1);
+			out.writeLong(hash);
+		} finally {
+			out.close();
+		}
+	}
+
+	static void writeVarint(DataOutputStream out, long value)
+		throws IOException
+	{
+		while((value & ~0x7FL) != 0) {
+			out.writeByte((int)(value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte((int)value);
+	}
+}
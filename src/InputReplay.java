@@ -0,0 +1,188 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+/*
+	Plays back a recording made by InputRecorder.
+
+	As a key source it hands the core the recorded key state for each
+	frame. Run as a program it replays recordings headless, as fast as
+	the core goes, and checks that each one ends on the same display
+	it was recorded with. A ROM that isn't the one recorded with, going
+	by its hash, isn't played at all. Exits with 1 if any recording
+	doesn't replay.
+
+	Usage: java InputReplay RECORDING ...
+*/
+public class InputReplay implements KeySource {
+	final String rom;
+	final String romHash;
+	final int ipf;
+
+	// Frames in the recording and the display at its end
+	final long frames;
+	final long hash;
+
+	// Changes of key state and the frames they happened on
+	private long[] changeFrames = new long[64];
+	private int[] states = new int[64];
+	private int changes;
+
+	private int next;
+	private int state;
+
+	public InputReplay(String file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+			new FileInputStream(file)));
+
+		try {
+			if(in.readInt() != InputRecorder.MAGIC)
+				throw new IOException(file + ": not an input recording");
+			if(in.readUnsignedByte() != InputRecorder.VERSION)
+				throw new IOException(file + ": unsupported version");
+
+			rom = in.readUTF();
+			romHash = in.readUTF();
+			ipf = (int)readVarint(in);
+
+			long at = 0;
+			while(true) {
+				long record = readVarint(in);
+				at += record >>> 1;
+
+				if((record & 1) != 0)
+					break;
+
+				if(changes == states.length) {
+					changeFrames = Arrays.copyOf(changeFrames, changes * 2);
+					states = Arrays.copyOf(states, changes * 2);
+				}
+
+				changeFrames[changes] = at;
+				states[changes] = in.readUnsignedShort();
+				changes++;
+			}
+
+			frames = at;
+			hash = in.readLong();
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+		Throws if the passed image isn't the ROM the recording was
+		made with. Replaying keys into other code means nothing.
+	*/
+	void checkRom(RomImage image) throws IOException {
+		if(!image.getHash().equals(romHash))
+			throw new IOException(rom + " has changed since it was " +
+				"recorded, SHA-256 " + image.getHash() + " instead of " +
+				romHash);
+	}
+
+	/*
+		The recorded key state for a frame.
+	*/
+	public int poll(long frame) {
+		while(next < changes && changeFrames[next] <= frame)
+			state = states[next++];
+
+		return state;
+	}
+
+	/*
+		The first frame from the passed one on that the keys change on,
+		or Long.MAX_VALUE if they never do again.
+	*/
+	long nextChange(long frame) {
+		for(int change = next; change < changes; change++) {
+			if(changeFrames[change] >= frame)
+				return changeFrames[change];
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	public static void main(String[] args) {
+		boolean passed = true;
+
+		for(String file : args) {
+			String name = new File(file).getName();
+
+			try {
+				InputReplay replay = new InputReplay(file);
+				RomImage image = RomImage.load(replay.rom);
+				replay.checkRom(image);
+
+				EmulatorCore core = new EmulatorCore(image);
+				core.setKeySource(replay);
+
+				long start = System.nanoTime();
+
+				while(core.getFrame() < replay.frames) {
+					// Waiting for a key, jump to when the keys change
+					if(core.isIdle()) {
+						long until = Math.min(replay.nextChange(core.getFrame()),
+							replay.frames);
+
+						if(until > core.getFrame()) {
+							core.skipFrames(until - core.getFrame());
+							continue;
+						}
+					}
+
+					core.runFrame(replay.ipf);
+				}
+
+				long nanos = System.nanoTime() - start;
+				long hash = core.getVRam().hash();
+
+				System.out.println(String.format("%-24s %-8s %8d frames %016x %6d ms",
+					name, hash == replay.hash ? "ok" : "MISMATCH", replay.frames,
+					hash, nanos / 1000000));
+
+				passed &= hash == replay.hash;
+			} catch(IOException e) {
+				System.out.println(String.format("%-24s %s", name, e));
+				passed = false;
+			}
+		}
+
+		System.exit(passed ? 0 : 1);
+	}
+
+	static long readVarint(DataInputStream in) throws IOException {
+		long value = 0;
+
+		for(int shift = 0; ; shift += 7) {
+			int b = in.readUnsignedByte();
+			value |= (long)(b & 0x7F) << shift;
+
+			if((b & 0x80) == 0)
+				return value;
+		}
+	}
+}
@@ -0,0 +1,205 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/*
+	A pre-decoded instruction.
+
+	Opcodes have their arguments built into them. Rather than pulling
+	x, y, kk, nnn and n out of the opcode and walking the nested opcode
+	switches every time an instruction runs, the core decodes each
+	memory address once and keeps the result around until that memory
+	gets written to.
+*/
+public final class Instruction {
+	/*
+		Handler types. These are numbered densely so the interpreter's
+		dispatch switch compiles to a jump table.
+	*/
+	static final int SYS = 0;		// 0nnn, ignored
+	static final int CLS = 1;		// 00E0
+	static final int RET = 2;		// 00EE
+	static final int JP = 3;		// 1nnn
+	static final int CALL = 4;		// 2nnn
+	static final int SE_BYTE = 5;		// 3xkk
+	static final int SNE_BYTE = 6;		// 4xkk
+	static final int SE_REG = 7;		// 5xy0
+	static final int LD_BYTE = 8;		// 6xkk
+	static final int ADD_BYTE = 9;		// 7xkk
+	static final int LD_REG = 10;		// 8xy0
+	static final int OR = 11;		// 8xy1
+	static final int AND = 12;		// 8xy2
+	static final int XOR = 13;		// 8xy3
+	static final int ADD_REG = 14;		// 8xy4
+	static final int SUB = 15;		// 8xy5
+	static final int SHR = 16;		// 8xy6
+	static final int SUBN = 17;		// 8xy7
+	static final int SHL = 18;		// 8xyE
+	static final int ALU_NOP = 19;		// 8xy?, unknown ALU op
+	static final int SNE_REG = 20;		// 9xy0
+	static final int LD_I = 21;		// Annn
+	static final int JP_V0 = 22;		// Bnnn
+	static final int RND = 23;		// Cxkk
+	static final int DRW = 24;		// Dxyn
+	static final int SKP = 25;		// Ex9E
+	static final int SKNP = 26;		// ExA1
+	static final int KEY_NOP = 27;		// Ex??, unknown key op
+	static final int LD_VX_DT = 28;		// Fx07
+	static final int LD_VX_K = 29;		// Fx0A
+	static final int LD_DT_VX = 30;		// Fx15
+	static final int LD_ST_VX = 31;		// Fx18
+	static final int ADD_I_VX = 32;		// Fx1E
+	static final int LD_F_VX = 33;		// Fx29
+	static final int LD_B_VX = 34;		// Fx33
+	static final int LD_MEM_VX = 35;	// Fx55
+	static final int LD_VX_MEM = 36;	// Fx65
+	static final int MISC_NOP = 37;		// Fx??, unknown misc op
+
+	/*
+		Every opcode decodes to the same thing every time, so each one
+		is only ever decoded once and then shared. Instructions are
+		immutable, so racing threads can at worst decode an opcode
+		twice.
+	*/
+	private static final Instruction[] DECODED = new Instruction[0x10000];
+
+	// The raw opcode this was decoded from
+	final short opcode;
+
+	// Handler type and arguments. Not all are used by every instruction.
+	final int type, x, y, kk, nnn, n;
+
+	private Instruction(int opcode, int type) {
+		this.opcode = (short)opcode;
+		this.type = type;
+
+		x = ((opcode & 0x0F00) >> 8);
+		y = ((opcode & 0x00F0) >> 4);
+		kk = (opcode & 0x00FF);
+		nnn = (opcode & 0x0FFF);
+		n = (opcode & 0x000F);
+	}
+
+	/*
+		Decodes a 16-bit opcode into its handler type and arguments.
+
+		Only the first decode of an opcode allocates.
+	*/
+	static Instruction decode(int opcode) {
+		opcode &= 0xFFFF;
+
+		Instruction inst = DECODED[opcode];
+
+		if(inst == null) {
+			inst = new Instruction(opcode, typeOf(opcode));
+			DECODED[opcode] = inst;
+		}
+
+		return inst;
+	}
+
+	private static int typeOf(int opcode) {
+		switch(opcode & 0xF000) {
+		case 0x0000:
+			if(opcode == 0x00E0)
+				return CLS;
+			if(opcode == 0x00EE)
+				return RET;
+			return SYS;
+		case 0x1000:
+			return JP;
+		case 0x2000:
+			return CALL;
+		case 0x3000:
+			return SE_BYTE;
+		case 0x4000:
+			return SNE_BYTE;
+		case 0x5000:
+			return SE_REG;
+		case 0x6000:
+			return LD_BYTE;
+		case 0x7000:
+			return ADD_BYTE;
+		case 0x8000:
+			switch(opcode & 0xF) {
+			case 0x0:
+				return LD_REG;
+			case 0x1:
+				return OR;
+			case 0x2:
+				return AND;
+			case 0x3:
+				return XOR;
+			case 0x4:
+				return ADD_REG;
+			case 0x5:
+				return SUB;
+			case 0x6:
+				return SHR;
+			case 0x7:
+				return SUBN;
+			case 0xE:
+				return SHL;
+			default:
+				return ALU_NOP;
+			}
+		case 0x9000:
+			return SNE_REG;
+		case 0xA000:
+			return LD_I;
+		case 0xB000:
+			return JP_V0;
+		case 0xC000:
+			return RND;
+		case 0xD000:
+			return DRW;
+		case 0xE000:
+			switch(opcode & 0xFF) {
+			case 0x9E:
+				return SKP;
+			case 0xA1:
+				return SKNP;
+			default:
+				return KEY_NOP;
+			}
+		default:
+			switch(opcode & 0xFF) {
+			case 0x07:
+				return LD_VX_DT;
+			case 0x0A:
+				return LD_VX_K;
+			case 0x15:
+				return LD_DT_VX;
+			case 0x18:
+				return LD_ST_VX;
+			case 0x1E:
+				return ADD_I_VX;
+			case 0x29:
+				return LD_F_VX;
+			case 0x33:
+				return LD_B_VX;
+			case 0x55:
+				return LD_MEM_VX;
+			case 0x65:
+				return LD_VX_MEM;
+			default:
+				return MISC_NOP;
+			}
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/*
+	Where the core gets its keys from.
+
+	The core only asks between frames, so a run is decided entirely by
+	the ROM and the key state each frame started with. That is what
+	makes recordings replay exactly.
+*/
+public interface KeySource {
+	/*
+		Returns the keys held for the frame about to run, bit n set
+		for key n. Called once a frame. Frames are numbered from 0 since the
+		core was reset.
+	*/
+	int poll(long frame);
+}
@@ -0,0 +1,41 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/*
+	JFR event for the time a ROM spent stopped at an Fx0A, from the
+	frame it stopped in until a key let it carry on.
+*/
+@Name("c8.KeyWait")
+@Label("Key Wait")
+@Category("CHIP-8")
+@Description("The ROM waiting at an Fx0A for a key")
+class KeyWaitEvent extends Event {
+	@Label("PC")
+	int pc;
+
+	@Label("Frames")
+	long frames;
+}
@@ -0,0 +1,229 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/*
+	Runtime metrics.
+
+	Cheap enough to leave on. Cores count instructions by opcode
+	family (the top nibble) into a plain array of their own and only
+	add them in here once a frame, and everything in here is a
+	LongAdder, so any number of cores and schedulers can share one
+	Metrics without fighting over it.
+
+	Registered with the platform MBean server it can be watched live
+	from JConsole or VisualVM. Frames and waits for a key are also
+	recorded as JFR events, see FrameEvent and KeyWaitEvent.
+*/
+public class Metrics implements MetricsMBean {
+	private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+		public long applyAsLong(long left, long right) {
+			return Math.max(left, right);
+		}
+	};
+
+	private final LongAdder[] families = new LongAdder[16];
+	private final LongAdder instructions = new LongAdder();
+	private final LongAdder frames = new LongAdder();
+	private final LongAccumulator mostInstructions = new LongAccumulator(MAX, 0);
+	private final LongAdder overruns = new LongAdder();
+	private final LongAdder overrunNanos = new LongAdder();
+	private final LongAdder throttleNanos = new LongAdder();
+	private final LongAdder keyWaits = new LongAdder();
+	private final LongAdder keyWaitNanos = new LongAdder();
+
+	private volatile long since = System.nanoTime();
+
+	public Metrics() {
+		for(int family = 0; family < families.length; family++)
+			families[family] = new LongAdder();
+	}
+
+	/*
+		Registers with the platform MBean server as
+		c8:type=Metrics,name=<name>. Returns false if that didn't work,
+		the metrics still count either way.
+	*/
+	public boolean register(String name) {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+				new ObjectName("c8:type=Metrics,name=" +
+				ObjectName.quote(name)));
+
+			return true;
+		} catch(JMException e) {
+			System.out.println("Can't register metrics: " + e);
+
+			return false;
+		}
+	}
+
+	/*
+		Adds a frame's worth of counts from a core, and zeroes them.
+	*/
+	void frame(long[] familyCounts, int executed) {
+		for(int family = 0; family < familyCounts.length; family++) {
+			if(familyCounts[family] != 0) {
+				families[family].add(familyCounts[family]);
+				familyCounts[family] = 0;
+			}
+		}
+
+		instructions.add(executed);
+		frames.increment();
+		mostInstructions.accumulate(executed);
+	}
+
+	/*
+		A frame took longer than it had, by the passed time.
+	*/
+	void overrun(long nanos) {
+		overruns.increment();
+		overrunNanos.add(nanos);
+	}
+
+	/*
+		Time spent parked waiting for the next frame to be due.
+	*/
+	void throttled(long nanos) {
+		throttleNanos.add(nanos);
+	}
+
+	/*
+		A wait for a key has ended after the passed time.
+	*/
+	void keyWait(long nanos) {
+		keyWaits.increment();
+		keyWaitNanos.add(nanos);
+	}
+
+	public long getInstructions() {
+		return instructions.sum();
+	}
+
+	public double getInstructionsPerSecond() {
+		return getInstructions() * 1e9 / (System.nanoTime() - since);
+	}
+
+	public long getFrames() {
+		return frames.sum();
+	}
+
+	public double getInstructionsPerFrame() {
+		long count = getFrames();
+
+		return (count == 0) ? 0 : (double)getInstructions() / count;
+	}
+
+	public long getMostInstructionsPerFrame() {
+		return mostInstructions.get();
+	}
+
+	public long[] getOpcodeFamilies() {
+		long[] counts = new long[families.length];
+
+		for(int family = 0; family < families.length; family++)
+			counts[family] = families[family].sum();
+
+		return counts;
+	}
+
+	public long getOverruns() {
+		return overruns.sum();
+	}
+
+	public long getOverrunNanos() {
+		return overrunNanos.sum();
+	}
+
+	public long getThrottleNanos() {
+		return throttleNanos.sum();
+	}
+
+	public long getKeyWaits() {
+		return keyWaits.sum();
+	}
+
+	public long getKeyWaitNanos() {
+		return keyWaitNanos.sum();
+	}
+
+	/*
+		Starts counting from zero again. Counts added at the same time
+		may or may not survive.
+	*/
+	public void reset() {
+		for(LongAdder family : families)
+			family.reset();
+
+		instructions.reset();
+		frames.reset();
+		mostInstructions.reset();
+		overruns.reset();
+		overrunNanos.reset();
+		throttleNanos.reset();
+		keyWaits.reset();
+		keyWaitNanos.reset();
+		since = System.nanoTime();
+	}
+
+	/*
+		Instructions by opcode family, one line each, most first.
+	*/
+	public String getReport() {
+		long[] counts = getOpcodeFamilies();
+		long total = Math.max(getInstructions(), 1);
+		StringBuilder report = new StringBuilder();
+
+		report.append(String.format("%d instructions in %d frames, " +
+			"%.1f per frame (%d most), %.1f ms throttled, %d waits for a " +
+			"key (%.1f ms)%n", getInstructions(), getFrames(),
+			getInstructionsPerFrame(), getMostInstructionsPerFrame(),
+			getThrottleNanos() / 1e6, getKeyWaits(),
+			getKeyWaitNanos() / 1e6));
+
+		boolean[] done = new boolean[counts.length];
+
+		for(int line = 0; line < counts.length; line++) {
+			int most = -1;
+
+			for(int family = 0; family < counts.length; family++) {
+				if(!done[family] && (most < 0 || counts[family] > counts[most]))
+					most = family;
+			}
+
+			done[most] = true;
+
+			if(counts[most] == 0)
+				break;
+
+			report.append(String.format("  %Xnnn %12d %5.1f%%%n", most,
+				counts[most], counts[most] * 100.0 / total));
+		}
+
+		return report.toString();
+	}
+}
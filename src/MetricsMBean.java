@@ -0,0 +1,53 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+/*
+	What Metrics shows over JMX.
+*/
+public interface MetricsMBean {
+	long getInstructions();
+
+	// Since the metrics were created or last reset
+	double getInstructionsPerSecond();
+
+	long getFrames();
+
+	double getInstructionsPerFrame();
+
+	long getMostInstructionsPerFrame();
+
+	// Instructions run by the top nibble of their opcode
+	long[] getOpcodeFamilies();
+
+	long getOverruns();
+
+	long getOverrunNanos();
+
+	// Time the scheduler spent waiting for frames to be due
+	long getThrottleNanos();
+
+	long getKeyWaits();
+
+	long getKeyWaitNanos();
+
+	String getReport();
+
+	void reset();
+}
@@ -0,0 +1,35 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/*
+	Audio sink that drops everything, for cores with nowhere to send
+	sound. Headless cores use it by default.
+*/
+public final class NullAudioSink implements AudioSink {
+	static final NullAudioSink INSTANCE = new NullAudioSink();
+
+	private NullAudioSink() {
+	}
+
+	public void frame(boolean beeping) {
+	}
+
+	public void close() {
+	}
+}
@@ -0,0 +1,301 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/*
+	Hot-spot profiler for ROM code.
+
+	Counts how many times the instruction at every address runs, for
+	working out where a ROM spends its time when choosing an IPF. The
+	report lists the loops that run the most, what kind of loop each
+	looks like (a ROM waiting on the delay timer, polling a key or
+	just working), a heatmap of memory and every address that ran
+	with its count and disassembly.
+
+	Profiling is turned on with -Dc8.profile=true. Like tracing, it
+	costs nothing when off, and turns the recompiler off when on so
+	every instruction is counted where it runs.
+
+	Usage: java -Dc8.profile=true Profiler [-frames N] [-ipf N] ROM
+*/
+public class Profiler {
+	static final boolean ENABLED = Boolean.getBoolean("c8.profile");
+
+	static final int DEFAULT_FRAMES = 600;
+
+	// Loops listed in the report
+	static final int REPORT_LOOPS = 10;
+
+	// Heatmap shades, coldest first
+	private static final String SHADES = " .:-=+*#%@";
+
+	/*
+		A loop found in the counts: the code from start up to and
+		including the jump back at end.
+	*/
+	static class Loop {
+		int start, end;
+		long count;
+		String kind;
+	}
+
+	// Times the instruction at each address ran. Read as unsigned, a
+	// spin loop running unthrottled gets past 2^31 in seconds.
+	private final int[] counts = new int[EmulatorCore.PAGES *
+		EmulatorCore.PAGE_SIZE];
+
+	/*
+		Counts the instruction about to run at pc.
+	*/
+	void count(int pc) {
+		counts[pc]++;
+	}
+
+	/*
+		Times the instruction at an address has run.
+	*/
+	public long getCount(int address) {
+		return counts[address] & 0xFFFFFFFFL;
+	}
+
+	public long getTotal() {
+		long total = 0;
+
+		for(int address = 0; address < counts.length; address++)
+			total += getCount(address);
+
+		return total;
+	}
+
+	public void clear() {
+		for(int address = 0; address < counts.length; address++)
+			counts[address] = 0;
+	}
+
+	/*
+		Finds loops from the jumps back that ran, hottest first. The
+		loop is everything from where the jump goes to the jump.
+	*/
+	List<Loop> findLoops(EmulatorCore core) {
+		List<Loop> loops = new ArrayList<Loop>();
+
+		for(int address = 0; address + 1 < counts.length; address++) {
+			int opcode = core.opcodeAt(address);
+
+			if(counts[address] == 0 || (opcode & 0xF000) != 0x1000)
+				continue;
+
+			int target = opcode & 0xFFF;
+
+			if(target > address || counts[target] == 0)
+				continue;
+
+			Loop loop = new Loop();
+			loop.start = target;
+			loop.end = address;
+
+			for(int inside = target; inside <= address; inside++)
+				loop.count += getCount(inside);
+
+			loop.kind = kindOf(core, target, address);
+			loops.add(loop);
+		}
+
+		Collections.sort(loops, new Comparator<Loop>() {
+			public int compare(Loop a, Loop b) {
+				return Long.compare(b.count, a.count);
+			}
+		});
+
+		return loops;
+	}
+
+	/*
+		Guesses what a loop is doing from the instructions in it.
+	*/
+	private String kindOf(EmulatorCore core, int start, int end) {
+		if(start == end)
+			return "halt";
+
+		boolean readsDelay = false, skips = false, keys = false;
+		int length = 0;
+
+		for(int address = start; address < end; address += 2) {
+			Instruction inst = Instruction.decode(core.opcodeAt(address));
+			length++;
+
+			switch(inst.type) {
+			case Instruction.LD_VX_DT:
+				readsDelay = true;
+				break;
+			case Instruction.SE_BYTE:
+			case Instruction.SNE_BYTE:
+			case Instruction.SE_REG:
+			case Instruction.SNE_REG:
+				skips = true;
+				break;
+			case Instruction.SKP:
+			case Instruction.SKNP:
+			case Instruction.LD_VX_K:
+				keys = true;
+				break;
+			}
+		}
+
+		if(readsDelay && skips && length <= 4)
+			return "delay timer wait";
+
+		if(keys && length <= 4)
+			return "key poll";
+
+		return "loop";
+	}
+
+	/*
+		The whole report as text.
+	*/
+	public String report(EmulatorCore core) {
+		StringBuilder report = new StringBuilder();
+		long total = Math.max(getTotal(), 1);
+
+		report.append(String.format("%d instructions profiled%n%n",
+			getTotal()));
+
+		report.append(String.format("Hot loops%n"));
+
+		List<Loop> loops = findLoops(core);
+
+		for(int index = 0; index < loops.size() && index < REPORT_LOOPS;
+			index++)
+		{
+			Loop loop = loops.get(index);
+
+			report.append(String.format("  %03X-%03X %12d %5.1f%%  %s%n",
+				loop.start, loop.end, loop.count,
+				loop.count * 100.0 / total, loop.kind));
+		}
+
+		report.append(String.format("%nHeatmap, 64 bytes a line%n"));
+		heatmap(report);
+
+		report.append(String.format("%nBy address%n"));
+
+		for(int address = 0; address + 1 < counts.length; address++) {
+			long count = getCount(address);
+
+			if(count == 0)
+				continue;
+
+			report.append(String.format("  %03X  %04X  %-16s %12d %5.1f%%%n",
+				address, core.opcodeAt(address),
+				Disassembler.format(core.opcodeAt(address)), count,
+				count * 100.0 / total));
+		}
+
+		return report.toString();
+	}
+
+	/*
+		One character per instruction word, shaded on a log scale
+		against the hottest. Lines that never ran are left out.
+	*/
+	private void heatmap(StringBuilder report) {
+		long most = 1;
+
+		for(int address = 0; address < counts.length; address++)
+			most = Math.max(most, getCount(address));
+
+		double scale = (SHADES.length() - 1) / Math.log(most + 1);
+
+		for(int line = 0; line < counts.length; line += 64) {
+			StringBuilder shades = new StringBuilder();
+			boolean ran = false;
+
+			for(int word = line; word < line + 64; word += 2) {
+				long count = getCount(word) + getCount(word + 1);
+				int shade = (count == 0) ? 0 :
+					Math.max(1, (int)(Math.log(count + 1) * scale));
+
+				shades.append(SHADES.charAt(Math.min(shade,
+					SHADES.length() - 1)));
+				ran |= count != 0;
+			}
+
+			if(ran)
+				report.append(String.format("  %03X |%s|%n", line, shades));
+		}
+	}
+
+	/*
+		Writes the report to a file.
+	*/
+	public void write(EmulatorCore core, String file) throws IOException {
+		Writer out = new FileWriter(file);
+
+		try {
+			out.write(report(core));
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+		Runs a ROM headless for a number of frames and prints its
+		profile.
+	*/
+	public static void main(String[] args) throws IOException {
+		int frames = DEFAULT_FRAMES;
+		int ipf = Scheduler.DEFAULT_IPF;
+		String rom = null;
+
+		for(int arg = 0; arg < args.length; arg++) {
+			if(args[arg].equals("-frames") && arg + 1 < args.length)
+				frames = Integer.parseInt(args[++arg]);
+			else if(args[arg].equals("-ipf") && arg + 1 < args.length)
+				ipf = Integer.parseInt(args[++arg]);
+			else
+				rom = args[arg];
+		}
+
+		if(!ENABLED) {
+			System.out.println("Profiling is off, run with -Dc8.profile=true");
+			return;
+		}
+
+		if(rom == null) {
+			System.out.println("No ROM");
+			return;
+		}
+
+		EmulatorCore core = new EmulatorCore(RomImage.load(rom));
+
+		for(int frame = 0; frame < frames && !core.isIdle(); frame++)
+			core.runFrame(ipf);
+
+		System.out.print(core.getProfiler().report(core));
+	}
+}
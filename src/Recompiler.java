@@ -0,0 +1,984 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+	Dynamic recompiler.
+
+	Finds the run of instructions starting at PC and turns it into a
+	hidden class whose run() method does the work of those instructions
+	directly on the core. The JIT then sees plain code instead of one
+	trip through Execute() per opcode.
+
+	A block only ends at a jump, call or return, which leave it with PC
+	set, or in front of an instruction that has to wait on the
+	interpreter (SYS, unknown key ops and Fx0A). Skips are branches
+	inside the block. Draws and memory ops call into the core, and a
+	block that writes over itself stops right after the write.
+*/
+public class Recompiler {
+	// Longest run of instructions compiled into one block. Skipped
+	// instructions are tracked as bits of an int.
+	static final int MAX_BLOCK = 32;
+
+	// Shortest run worth compiling; anything less is interpreted
+	static final int MIN_BLOCK = 2;
+
+	/*
+		A compiled block. Generated classes extend this.
+	*/
+	abstract static class Block {
+		// Number of instructions in the block
+		final int length;
+
+		// Opcode of each instruction
+		final short[] opcodes;
+
+		// Cleared when something writes over the block
+		boolean valid = true;
+
+		// Whether the block ends with a jump, which may be back to
+		// the top of a wait loop
+		boolean endsInJump;
+
+		Block(int length) {
+			this.length = length;
+			opcodes = new short[length];
+		}
+
+		/*
+			Runs the block from its first instruction and leaves PC
+			where it stopped. A block that jumps back to its own
+			start goes round again for as long as another time
+			round fits in budget. Returns the number of
+			instructions that ran.
+		*/
+		abstract int run(EmulatorCore core, byte[] V, int budget);
+
+		/*
+			Called by the generated code on the way out of run().
+			The block ran up to, but not including, instruction
+			end, less the instructions set in skipped. Leaves the
+			core's Opcode where the interpreter would, counts them
+			by family when metrics are on and returns how many
+			there were.
+		*/
+		final int finish(EmulatorCore core, int end, int skipped) {
+			int ran = (int)((1L << end) - 1) & ~skipped;
+
+			core.Opcode = opcodes[31 - Integer.numberOfLeadingZeros(ran)];
+
+			if(core.metrics != null) {
+				for(int i = 0; i < end; i++) {
+					if((ran & (1 << i)) != 0)
+						core.familyCounts[(opcodes[i] >> 12) & 0xF]++;
+				}
+			}
+
+			return Integer.bitCount(ran);
+		}
+	}
+
+	// Marks addresses where no block could be compiled
+	private static final Block NONE = new Block(0) {
+		int run(EmulatorCore core, byte[] V, int budget) {
+			return 0;
+		}
+	};
+
+	private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+	private final Block[] blocks = new Block[4096];
+
+	// Memory read to compile everything in blocks, so writes
+	// elsewhere can be ignored straight away
+	private int codeStart = Integer.MAX_VALUE, codeEnd;
+
+	/*
+		Returns the compiled block starting at the passed address,
+		compiling it first if needed. Returns null if the code there
+		isn't worth compiling.
+	*/
+	Block blockAt(EmulatorCore core, int address) {
+		Block block = blocks[address];
+
+		if(block == null) {
+			block = compile(core, address);
+			blocks[address] = block;
+
+			codeStart = Math.min(codeStart, address);
+			codeEnd = Math.max(codeEnd, address + span(block));
+		}
+
+		return (block == NONE) ? null : block;
+	}
+
+	/*
+		Drops blocks that overlap the passed memory range. A block
+		that's running when it's dropped sees valid go false and
+		stops.
+	*/
+	void invalidate(int address, int length) {
+		if(address >= codeEnd || address + length <= codeStart)
+			return;
+
+		int start = Math.max(address - (MAX_BLOCK * 2) + 1, 0);
+		int end = Math.min(address + length, blocks.length);
+
+		for(int addr = start; addr < end; addr++) {
+			Block block = blocks[addr];
+
+			if(block != null && addr + span(block) > address) {
+				if(block != NONE)
+					block.valid = false;
+
+				blocks[addr] = null;
+			}
+		}
+	}
+
+	/*
+		Bytes of memory that were read to compile a block. Where
+		nothing was compiled, that's however far the scan got.
+	*/
+	private static int span(Block block) {
+		return (block == NONE) ? MIN_BLOCK * 2 : block.length * 2;
+	}
+
+	/*
+		Drops every compiled block.
+	*/
+	void clear() {
+		for(int addr = 0; addr < blocks.length; addr++) {
+			if(blocks[addr] != null && blocks[addr] != NONE)
+				blocks[addr].valid = false;
+
+			blocks[addr] = null;
+		}
+
+		codeStart = Integer.MAX_VALUE;
+		codeEnd = 0;
+	}
+
+	/*
+		Scans the code starting at address and compiles it up to the
+		first jump, call or return.
+	*/
+	private Block compile(EmulatorCore core, int address) {
+		int length = scan(core, address);
+
+		// A jump to itself is worth it on its own, it's a loop.
+		// Nothing is allocated until then, addresses next to data
+		// are looked at again every time it's written.
+		if(length < MIN_BLOCK && !loops(core, address, length))
+			return NONE;
+
+		List<Instruction> run = new ArrayList<Instruction>(length);
+		for(int i = 0; i < length; i++)
+			run.add(Instruction.decode(core.opcodeAt(address + i * 2)));
+
+		try {
+			MethodHandles.Lookup hidden =
+				lookup.defineHiddenClass(emit(run, address), true);
+			MethodHandle constructor = hidden.findConstructor(
+				hidden.lookupClass(),
+				MethodType.methodType(void.class, int.class));
+
+			Block block = (Block)constructor.invoke(run.size());
+
+			for(int i = 0; i < run.size(); i++)
+				block.opcodes[i] = run.get(i).opcode;
+			block.endsInJump =
+				run.get(run.size() - 1).type == Instruction.JP;
+
+			return block;
+		} catch(Throwable e) {
+			// Fall back to the interpreter rather than dying
+			e.printStackTrace();
+
+			return NONE;
+		}
+	}
+
+	/*
+		Whether an instruction can go in a block. The ones left out
+		don't move PC on their own and have to be interpreted.
+	*/
+	private static boolean isCompiled(Instruction inst) {
+		switch(inst.type) {
+		case Instruction.SYS:
+		case Instruction.KEY_NOP:
+		case Instruction.LD_VX_K:
+			return false;
+		default:
+			return true;
+		}
+	}
+
+	/*
+		Whether an instruction sets PC to somewhere other than the
+		next instruction every time it runs.
+	*/
+	private static boolean endsBlock(Instruction inst) {
+		switch(inst.type) {
+		case Instruction.JP:
+		case Instruction.CALL:
+		case Instruction.RET:
+		case Instruction.JP_V0:
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	/*
+		Returns how many instructions from address go in one block.
+	*/
+	private static int scan(EmulatorCore core, int address) {
+		int length = 0;
+
+		for(int addr = address; addr + 1 < core.memory.length &&
+			length < MAX_BLOCK; addr += 2)
+		{
+			Instruction inst = Instruction.decode(core.opcodeAt(addr));
+
+			if(!isCompiled(inst))
+				break;
+
+			length++;
+
+			if(endsBlock(inst))
+				break;
+		}
+
+		return length;
+	}
+
+	/*
+		Whether the block of length instructions at address ends by
+		jumping back to its own start.
+	*/
+	private static boolean loops(EmulatorCore core, int address,
+		int length)
+	{
+		if(length == 0)
+			return false;
+
+		Instruction last = Instruction.decode(
+			core.opcodeAt(address + (length - 1) * 2));
+
+		return last.type == Instruction.JP && last.nnn == address;
+	}
+
+	/*
+		Builds the class file for a block starting at address.
+
+		The generated class looks like:
+
+		final class CompiledBlock extends Recompiler$Block {
+			CompiledBlock(int length) { super(length); }
+			int run(EmulatorCore core, byte[] V, int budget) { ...instructions... }
+		}
+
+		A taken skip jumps forward over the next instruction and
+		notes it in a mask of skipped instructions. Every way out of
+		run() sets PC and returns through finish(), plus whatever ran
+		in earlier times round a loop.
+
+		The class file is version 49 so that the branches don't need
+		stack map frames.
+	*/
+	private static byte[] emit(List<Instruction> run, int address)
+		throws IOException
+	{
+		ClassWriter cw = new ClassWriter();
+		int thisClass = cw.classRef("CompiledBlock");
+		int superClass = cw.classRef("Recompiler$Block");
+		int superInit = cw.methodRef("Recompiler$Block", "<init>", "(I)V");
+		int finish = cw.methodRef("Recompiler$Block", "finish",
+			"(LEmulatorCore;II)I");
+		int fieldValid = cw.fieldRef("Recompiler$Block", "valid", "Z");
+		int fieldPC = cw.fieldRef("EmulatorCore", "PC", "I");
+		int fieldI = cw.fieldRef("EmulatorCore", "I", "S");
+		int fieldDelay = cw.fieldRef("EmulatorCore", "delay_timer", "I");
+		int fieldSound = cw.fieldRef("EmulatorCore", "sound_timer", "I");
+		int nextRandom = cw.methodRef("EmulatorCore", "nextRandom", "(I)I");
+		int isHeld = cw.methodRef("EmulatorCore", "isHeld", "(B)Z");
+		int draw = cw.methodRef("EmulatorCore", "draw", "(III)V");
+		int clearScreen = cw.methodRef("EmulatorCore", "clearScreen", "()V");
+		int call = cw.methodRef("EmulatorCore", "call", "(I)V");
+		int ret = cw.methodRef("EmulatorCore", "ret", "()V");
+		int storeBCD = cw.methodRef("EmulatorCore", "storeBCD", "(I)V");
+		int storeRegisters = cw.methodRef("EmulatorCore",
+			"storeRegisters", "(I)V");
+		int loadRegisters = cw.methodRef("EmulatorCore",
+			"loadRegisters", "(I)V");
+
+		// Constructor, just hands the length to Block
+		Code init = new Code(0);
+		init.op(ALOAD_0);
+		init.op(ILOAD_1);
+		init.op(INVOKESPECIAL);
+		init.u2(superInit);
+		init.op(RETURN);
+
+		// run(core, V, budget). Local 1 is the core, local 2 is V,
+		// local 3 the budget, local 4 the mask of skipped
+		// instructions and local 5 what ran in earlier times round.
+		// Label i is the start of instruction i, label n is the way
+		// out at the end and label n + 1 the way out of a loop.
+		int n = run.size();
+		Code code = new Code(n + 2);
+		code.op(ICONST_0);
+		code.op(ISTORE);
+		code.op(RAN);
+		code.op(ICONST_0);
+		code.op(ISTORE);
+		code.op(SKIPPED);
+
+		for(int i = 0; i < n; i++) {
+			Instruction inst = run.get(i);
+			int addr = address + i * 2;
+			int x = inst.x;
+			int y = inst.y;
+
+			code.mark(i);
+
+			switch(inst.type) {
+			case Instruction.LD_BYTE:
+				// V[x] = kk
+				code.storeV(x);
+				code.push((byte)inst.kk);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.ADD_BYTE:
+				// V[x] = V[x] + kk
+				code.storeV(x);
+				code.loadV(x);
+				code.push(inst.kk);
+				code.op(IADD);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.LD_REG:
+				// V[x] = V[y]
+				code.storeV(x);
+				code.loadV(y);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.OR:
+			case Instruction.AND:
+			case Instruction.XOR:
+				// V[x] = V[x] op V[y]
+				code.storeV(x);
+				code.loadV(x);
+				code.loadV(y);
+				if(inst.type == Instruction.OR)
+					code.op(IOR);
+				else if(inst.type == Instruction.AND)
+					code.op(IAND);
+				else
+					code.op(IXOR);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.ADD_REG:
+				// V[x] = V[x] + V[y]
+				code.storeV(x);
+				code.loadV(x);
+				code.loadV(y);
+				code.op(IADD);
+				code.op(BASTORE);
+
+				// The interpreter works out the carry from the
+				// signed registers, which never sum past 255
+				code.storeV(0xF);
+				code.push(0);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.SUB:
+				// VF = (V[x] > V[y]), as the sign of V[y] - V[x]
+				code.storeV(0xF);
+				code.loadV(y);
+				code.loadV(x);
+				code.op(ISUB);
+				code.push(31);
+				code.op(IUSHR);
+				code.op(BASTORE);
+
+				// V[x] = V[x] - V[y]
+				code.storeV(x);
+				code.loadV(x);
+				code.loadV(y);
+				code.op(ISUB);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.SHR:
+				// VF = V[x] & 1
+				code.storeV(0xF);
+				code.loadV(x);
+				code.push(1);
+				code.op(IAND);
+				code.op(BASTORE);
+
+				// V[x] = V[x] >> 1
+				code.storeV(x);
+				code.loadV(x);
+				code.push(1);
+				code.op(ISHR);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.SUBN:
+				// VF = (V[y] > V[x]), as the sign of V[x] - V[y]
+				code.storeV(0xF);
+				code.loadV(x);
+				code.loadV(y);
+				code.op(ISUB);
+				code.push(31);
+				code.op(IUSHR);
+				code.op(BASTORE);
+
+				// V[x] = V[y] - V[x]
+				code.storeV(x);
+				code.loadV(y);
+				code.loadV(x);
+				code.op(ISUB);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.SHL:
+				// VF = (V[x] & 0x80) >> 7
+				code.storeV(0xF);
+				code.loadV(x);
+				code.push(0x80);
+				code.op(IAND);
+				code.push(7);
+				code.op(ISHR);
+				code.op(BASTORE);
+
+				// V[x] = V[x] << 1
+				code.storeV(x);
+				code.loadV(x);
+				code.push(1);
+				code.op(ISHL);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.LD_I:
+				// core.I = nnn
+				code.op(ALOAD_1);
+				code.push(inst.nnn);
+				code.op(PUTFIELD);
+				code.u2(fieldI);
+				break;
+
+			case Instruction.RND:
+				// V[x] = core.nextRandom(255) & kk
+				code.storeV(x);
+				code.op(ALOAD_1);
+				code.push(255);
+				code.op(INVOKEVIRTUAL);
+				code.u2(nextRandom);
+				code.push(inst.kk);
+				code.op(IAND);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.LD_VX_DT:
+				// V[x] = core.delay_timer
+				code.storeV(x);
+				code.op(ALOAD_1);
+				code.op(GETFIELD);
+				code.u2(fieldDelay);
+				code.op(BASTORE);
+				break;
+
+			case Instruction.LD_DT_VX:
+			case Instruction.LD_ST_VX:
+				// core.delay_timer/sound_timer = V[x] & 0xFF
+				code.op(ALOAD_1);
+				code.loadV(x);
+				code.push(0xFF);
+				code.op(IAND);
+				code.op(PUTFIELD);
+				code.u2(inst.type == Instruction.LD_DT_VX ?
+					fieldDelay : fieldSound);
+				break;
+
+			case Instruction.ADD_I_VX:
+				// core.I = (short)(core.I + V[x])
+				code.op(ALOAD_1);
+				code.op(ALOAD_1);
+				code.op(GETFIELD);
+				code.u2(fieldI);
+				code.loadV(x);
+				code.op(IADD);
+				code.op(I2S);
+				code.op(PUTFIELD);
+				code.u2(fieldI);
+				break;
+
+			case Instruction.LD_F_VX:
+				// core.I = (short)(V[x] * 5)
+				code.op(ALOAD_1);
+				code.loadV(x);
+				code.push(5);
+				code.op(IMUL);
+				code.op(I2S);
+				code.op(PUTFIELD);
+				code.u2(fieldI);
+				break;
+
+			case Instruction.SE_BYTE:
+			case Instruction.SNE_BYTE:
+				// Skip if V[x] == kk, or V[x] != kk
+				code.loadV(x);
+				code.push((byte)inst.kk);
+				code.branch(inst.type == Instruction.SE_BYTE ?
+					IF_ICMPNE : IF_ICMPEQ, i + 1);
+				code.skip(i, n, addr, fieldPC, finish);
+				break;
+
+			case Instruction.SE_REG:
+			case Instruction.SNE_REG:
+				// Skip if V[x] == V[y], or V[x] != V[y]
+				code.loadV(x);
+				code.loadV(y);
+				code.branch(inst.type == Instruction.SE_REG ?
+					IF_ICMPNE : IF_ICMPEQ, i + 1);
+				code.skip(i, n, addr, fieldPC, finish);
+				break;
+
+			case Instruction.SKP:
+			case Instruction.SKNP:
+				// Skip if core.isHeld(V[x]), or if it isn't
+				code.op(ALOAD_1);
+				code.loadV(x);
+				code.op(INVOKEVIRTUAL);
+				code.u2(isHeld);
+				code.branch(inst.type == Instruction.SKP ?
+					IFEQ : IFNE, i + 1);
+				code.skip(i, n, addr, fieldPC, finish);
+				break;
+
+			case Instruction.JP:
+				if(inst.nnn == address) {
+					// ran += finish(core, i + 1, skipped), then
+					// round again if that fits in the budget
+					code.op(ALOAD_0);
+					code.op(ALOAD_1);
+					code.push(i + 1);
+					code.op(ILOAD);
+					code.op(SKIPPED);
+					code.op(INVOKEVIRTUAL);
+					code.u2(finish);
+					code.op(ILOAD);
+					code.op(RAN);
+					code.op(IADD);
+					code.op(ISTORE);
+					code.op(RAN);
+
+					code.op(ILOAD);
+					code.op(RAN);
+					code.push(n);
+					code.op(IADD);
+					code.op(ILOAD_3);
+					code.branch(IF_ICMPGT, n + 1);
+					code.op(ICONST_0);
+					code.op(ISTORE);
+					code.op(SKIPPED);
+					code.branch(GOTO, 0);
+
+					// Out of budget, everything's counted already
+					code.mark(n + 1);
+					code.setPC(inst.nnn, fieldPC);
+					code.op(ILOAD);
+					code.op(RAN);
+					code.op(IRETURN);
+					break;
+				}
+
+				// core.PC = nnn
+				code.setPC(inst.nnn, fieldPC);
+				code.leave(i + 1, finish);
+				break;
+
+			case Instruction.JP_V0:
+				// core.PC = (short)(nnn + V[0])
+				code.op(ALOAD_1);
+				code.push(inst.nnn);
+				code.loadV(0);
+				code.op(IADD);
+				code.op(I2S);
+				code.op(PUTFIELD);
+				code.u2(fieldPC);
+				code.leave(i + 1, finish);
+				break;
+
+			case Instruction.CALL:
+				// core.call(nnn), pushing this instruction's address
+				code.setPC(addr, fieldPC);
+				code.op(ALOAD_1);
+				code.push(inst.nnn);
+				code.op(INVOKEVIRTUAL);
+				code.u2(call);
+				code.leave(i + 1, finish);
+				break;
+
+			case Instruction.RET:
+				// core.ret(), PC is set first in case the stack is
+				// empty and it throws
+				code.setPC(addr, fieldPC);
+				code.op(ALOAD_1);
+				code.op(INVOKEVIRTUAL);
+				code.u2(ret);
+				code.leave(i + 1, finish);
+				break;
+
+			case Instruction.CLS:
+				// core.clearScreen()
+				code.op(ALOAD_1);
+				code.op(INVOKEVIRTUAL);
+				code.u2(clearScreen);
+				break;
+
+			case Instruction.DRW:
+				// core.draw(x, y, n), which reads memory at I and so
+				// gets PC set first in case it throws
+				code.setPC(addr, fieldPC);
+				code.op(ALOAD_1);
+				code.push(x);
+				code.push(y);
+				code.push(inst.n);
+				code.op(INVOKEVIRTUAL);
+				code.u2(draw);
+				break;
+
+			case Instruction.LD_B_VX:
+			case Instruction.LD_MEM_VX:
+				// core.storeBCD(x) or core.storeRegisters(x), then
+				// stop if that wrote over the block
+				code.setPC(addr, fieldPC);
+				code.op(ALOAD_1);
+				code.push(x);
+				code.op(INVOKEVIRTUAL);
+				code.u2(inst.type == Instruction.LD_B_VX ?
+					storeBCD : storeRegisters);
+
+				if(i + 1 < n) {
+					code.op(ALOAD_0);
+					code.op(GETFIELD);
+					code.u2(fieldValid);
+					code.branch(IFNE, i + 1);
+					code.setPC(addr + 2, fieldPC);
+					code.leave(i + 1, finish);
+				}
+				break;
+
+			case Instruction.LD_VX_MEM:
+				// core.loadRegisters(x)
+				code.setPC(addr, fieldPC);
+				code.op(ALOAD_1);
+				code.push(x);
+				code.op(INVOKEVIRTUAL);
+				code.u2(loadRegisters);
+				break;
+
+			default:
+				// Unknown ALU and misc instructions do nothing
+				break;
+			}
+		}
+
+		// Falling off the end
+		code.mark(n);
+		code.setPC(address + n * 2, fieldPC);
+		code.leave(n, finish);
+
+		return cw.toByteArray(thisClass, superClass,
+			new String[] { "<init>", "run" },
+			new String[] { "(I)V", "(LEmulatorCore;[BI)I" },
+			new Code[] { init, code },
+			new int[] { 2, 6 });
+	}
+
+	// Locals in run() past the arguments
+	private static final int SKIPPED = 4, RAN = 5;
+
+	// JVM opcodes used by the generated code
+	private static final int ICONST_0 = 0x03, ICONST_1 = 0x04,
+		BIPUSH = 0x10, SIPUSH = 0x11, ILOAD = 0x15, ILOAD_1 = 0x1B,
+		ILOAD_3 = 0x1D, ALOAD_0 = 0x2A, ALOAD_1 = 0x2B, ALOAD_2 = 0x2C,
+		BALOAD = 0x33, ISTORE = 0x36, BASTORE = 0x54, IADD = 0x60, ISUB = 0x64,
+		IMUL = 0x68, ISHL = 0x78, ISHR = 0x7A, IUSHR = 0x7C, IAND = 0x7E,
+		IOR = 0x80, IXOR = 0x82, I2S = 0x93, IFEQ = 0x99, IFNE = 0x9A,
+		IF_ICMPEQ = 0x9F, IF_ICMPNE = 0xA0, IF_ICMPGT = 0xA3, GOTO = 0xA7, IRETURN = 0xAC,
+		RETURN = 0xB1, GETFIELD = 0xB4, PUTFIELD = 0xB5,
+		INVOKEVIRTUAL = 0xB6, INVOKESPECIAL = 0xB7;
+
+	/*
+		A method body being assembled. Branches are filled in once
+		every label has been marked.
+	*/
+	private static class Code {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final int[] labels;
+
+		// Offset of each branch opcode and the label it goes to
+		final List<int[]> branches = new ArrayList<int[]>();
+
+		Code(int labels) {
+			this.labels = new int[labels];
+		}
+
+		void op(int opcode) {
+			bytes.write(opcode);
+		}
+
+		void u2(int value) {
+			bytes.write(value >> 8);
+			bytes.write(value);
+		}
+
+		// Pushes an int constant using the shortest encoding
+		void push(int value) {
+			if(value >= -1 && value <= 5) {
+				op(ICONST_0 + value);
+			}
+			else if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				op(BIPUSH);
+				op(value & 0xFF);
+			}
+			else {
+				op(SIPUSH);
+				u2(value & 0xFFFF);
+			}
+		}
+
+		// Pushes V[r]
+		void loadV(int r) {
+			op(ALOAD_2);
+			push(r);
+			op(BALOAD);
+		}
+
+		// Pushes V and r, ready for a BASTORE into V[r]
+		void storeV(int r) {
+			op(ALOAD_2);
+			push(r);
+		}
+
+		// Sets core.PC to a constant
+		void setPC(int pc, int fieldPC) {
+			op(ALOAD_1);
+			push(pc);
+			op(PUTFIELD);
+			u2(fieldPC);
+		}
+
+		// Returns finish(core, end, skipped) + ran
+		void leave(int end, int finish) {
+			op(ALOAD_0);
+			op(ALOAD_1);
+			push(end);
+			op(ILOAD);
+			op(SKIPPED);
+			op(INVOKEVIRTUAL);
+			u2(finish);
+			op(ILOAD);
+			op(RAN);
+			op(IADD);
+			op(IRETURN);
+		}
+
+		/*
+			The taken side of the skip at instruction i of n. Skips
+			the next instruction, or leaves the block if that's the
+			last one.
+		*/
+		void skip(int i, int n, int addr, int fieldPC, int finish) {
+			if(i + 1 < n) {
+				// skipped |= 1 << (i + 1)
+				op(ILOAD);
+				op(SKIPPED);
+				op(ICONST_1);
+				push(i + 1);
+				op(ISHL);
+				op(IOR);
+				op(ISTORE);
+				op(SKIPPED);
+				branch(GOTO, i + 2);
+			}
+			else {
+				setPC(addr + 4, fieldPC);
+				leave(i + 1, finish);
+			}
+		}
+
+		// Branches to a label
+		void branch(int opcode, int label) {
+			branches.add(new int[] { bytes.size(), label });
+			op(opcode);
+			u2(0);
+		}
+
+		// Puts a label at the current offset
+		void mark(int label) {
+			labels[label] = bytes.size();
+		}
+
+		// The finished bytecode, with branch offsets filled in
+		byte[] toByteArray() {
+			byte[] code = bytes.toByteArray();
+
+			for(int[] branch : branches) {
+				int offset = labels[branch[1]] - branch[0];
+
+				code[branch[0] + 1] = (byte)(offset >> 8);
+				code[branch[0] + 2] = (byte)offset;
+			}
+
+			return code;
+		}
+	}
+
+	/*
+		Just enough of a class file writer for the generated blocks.
+	*/
+	private static class ClassWriter {
+		final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(pool);
+		int count = 1;
+
+		int utf8(String value) throws IOException {
+			out.writeByte(1);
+			out.writeUTF(value);
+			return count++;
+		}
+
+		int classRef(String name) throws IOException {
+			int nameIndex = utf8(name);
+			out.writeByte(7);
+			out.writeShort(nameIndex);
+			return count++;
+		}
+
+		int nameAndType(String name, String descriptor) throws IOException {
+			int nameIndex = utf8(name);
+			int descIndex = utf8(descriptor);
+			out.writeByte(12);
+			out.writeShort(nameIndex);
+			out.writeShort(descIndex);
+			return count++;
+		}
+
+		int fieldRef(String owner, String name, String descriptor)
+			throws IOException
+		{
+			return memberRef(9, owner, name, descriptor);
+		}
+
+		int methodRef(String owner, String name, String descriptor)
+			throws IOException
+		{
+			return memberRef(10, owner, name, descriptor);
+		}
+
+		private int memberRef(int tag, String owner, String name,
+			String descriptor) throws IOException
+		{
+			int classIndex = classRef(owner);
+			int natIndex = nameAndType(name, descriptor);
+			out.writeByte(tag);
+			out.writeShort(classIndex);
+			out.writeShort(natIndex);
+			return count++;
+		}
+
+		byte[] toByteArray(int thisClass, int superClass, String[] names,
+			String[] descriptors, Code[] bodies, int[] maxLocals)
+			throws IOException
+		{
+			// Method names and the attribute name have to be in the
+			// pool before it's written out
+			int codeName = utf8("Code");
+			int[] nameIndex = new int[names.length];
+			int[] descIndex = new int[names.length];
+			for(int m = 0; m < names.length; m++) {
+				nameIndex[m] = utf8(names[m]);
+				descIndex[m] = utf8(descriptors[m]);
+			}
+			out.flush();
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream file = new DataOutputStream(bytes);
+
+			file.writeInt(0xCAFEBABE);
+			file.writeShort(0);
+			file.writeShort(49);
+			file.writeShort(count);
+			pool.writeTo(file);
+
+			// final class, no interfaces or fields
+			file.writeShort(0x0030);
+			file.writeShort(thisClass);
+			file.writeShort(superClass);
+			file.writeShort(0);
+			file.writeShort(0);
+
+			file.writeShort(names.length);
+			for(int m = 0; m < names.length; m++) {
+				byte[] code = bodies[m].toByteArray();
+
+				file.writeShort(0);
+				file.writeShort(nameIndex[m]);
+				file.writeShort(descIndex[m]);
+				file.writeShort(1);
+
+				file.writeShort(codeName);
+				file.writeInt(12 + code.length);
+				// Nothing keeps more than a handful of values on
+				// the stack at once
+				file.writeShort(8);
+				file.writeShort(maxLocals[m]);
+				file.writeInt(code.length);
+				file.write(code);
+				file.writeShort(0);
+				file.writeShort(0);
+			}
+
+			file.writeShort(0);
+			file.flush();
+
+			return bytes.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,326 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+	Rewind buffer.
+
+	Records the machine state at the end of every frame so play can be
+	stepped backwards. Every keyframe interval a full snapshot is kept;
+	frames in between only store the registers plus the bytes of
+	memory and rows of VRAM that changed, XORed against the frame
+	before. Most frames change a handful of bytes, so a delta costs a
+	couple of hundred bytes at most.
+
+	Going back to a frame restores the keyframe before it and applies
+	the deltas in between, which is never more than one keyframe
+	interval of work. The oldest keyframe and its deltas are dropped
+	whenever the buffer goes over its memory budget.
+*/
+public class Rewind {
+	// A keyframe a second
+	static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+	static final long DEFAULT_BUDGET = 8L << 20;
+
+	// Rough cost of an object header and an array header, in bytes
+	private static final int OBJECT_BYTES = 16;
+
+	// Shared by the many frames that don't change anything
+	private static final short[] NO_ADDRESSES = new short[0];
+	private static final byte[] NO_BYTES = new byte[0];
+	private static final long[] NO_ROWS = new long[0];
+
+	/*
+		One recorded frame.
+	*/
+	private static class Frame {
+		// The whole machine, on keyframes only
+		Snapshot keyframe;
+
+		// Registers for every frame; pages and graphics are unused
+		Snapshot registers;
+
+		// Memory addresses that changed and their XOR against the
+		// previous frame
+		short[] addresses;
+		byte[] memoryXor;
+
+		// VRAM rows that changed, one bit per row, and their XOR
+		int rows;
+		long[] rowXor;
+
+		long bytes;
+	}
+
+	private final int keyframeInterval;
+	private final long budget;
+	private final List<Frame> frames = new ArrayList<Frame>();
+	private long bytes;
+
+	// Frames recorded since the last keyframe
+	private int sinceKeyframe;
+
+	// State at the last recorded frame, what deltas are taken against
+	private Snapshot previous;
+
+	// Scratch space for diffing memory, big enough for all of it
+	private final short[] changedAddresses = new short[EmulatorCore.PAGES *
+		EmulatorCore.PAGE_SIZE];
+	private final byte[] changedXor = new byte[EmulatorCore.PAGES *
+		EmulatorCore.PAGE_SIZE];
+
+	public Rewind() {
+		this(DEFAULT_BUDGET, DEFAULT_KEYFRAME_INTERVAL);
+	}
+
+	public Rewind(long budget, int keyframeInterval) {
+		this.budget = budget;
+		this.keyframeInterval = keyframeInterval;
+	}
+
+	/*
+		Records the state of the core. Call once at the end of every
+		frame.
+	*/
+	public void record(EmulatorCore core) {
+		Snapshot now = core.snapshot();
+		Frame frame = new Frame();
+
+		if(previous == null || sinceKeyframe >= keyframeInterval) {
+			frame.keyframe = now;
+			frame.bytes = EmulatorCore.PAGES * (EmulatorCore.PAGE_SIZE +
+				OBJECT_BYTES) + FrameBuffer.HEIGHT * 8;
+			sinceKeyframe = 0;
+		}
+		else {
+			diffMemory(frame, previous, now);
+			diffRows(frame, previous, now);
+		}
+
+		frame.registers = registersOf(now);
+		frame.bytes += OBJECT_BYTES * 4 + 16 + 16 * 4;
+
+		frames.add(frame);
+		bytes += frame.bytes;
+		sinceKeyframe++;
+		previous = now;
+
+		trim();
+	}
+
+	/*
+		Number of frames that can currently be rewound.
+	*/
+	public int available() {
+		return Math.max(frames.size() - 1, 0);
+	}
+
+	/*
+		Approximate memory held by the buffer, in bytes.
+	*/
+	public long getBytes() {
+		return bytes;
+	}
+
+	/*
+		Puts the core back to how it was count frames before the most
+		recently recorded one, and forgets the frames after that.
+		Returns false, leaving the core alone, if the buffer doesn't go
+		back that far.
+	*/
+	public boolean rewind(EmulatorCore core, int count) {
+		int target = frames.size() - 1 - count;
+
+		if(count < 0 || target < 0)
+			return false;
+
+		Snapshot state = rebuild(target);
+		core.restore(state);
+
+		// The future we came back from is gone
+		for(int index = frames.size() - 1; index > target; index--)
+			bytes -= frames.remove(index).bytes;
+
+		// Count frames since the keyframe again from where we are
+		sinceKeyframe = 0;
+		for(int index = target; frames.get(index).keyframe == null; index--)
+			sinceKeyframe++;
+		sinceKeyframe++;
+
+		// Snapshot again so deltas carry on against the core's pages
+		previous = core.snapshot();
+
+		return true;
+	}
+
+	/*
+		Rebuilds the full state at a frame from the keyframe before it.
+	*/
+	private Snapshot rebuild(int target) {
+		int start = target;
+		while(frames.get(start).keyframe == null)
+			start--;
+
+		Snapshot key = frames.get(start).keyframe;
+
+		// Apply the memory deltas to a copy of the keyframe's pages,
+		// copying a page the first time a delta touches it
+		byte[][] pages = key.pages.clone();
+		boolean[] copied = new boolean[EmulatorCore.PAGES];
+		long[] graphics = key.graphics.clone();
+
+		for(int index = start + 1; index <= target; index++) {
+			Frame frame = frames.get(index);
+
+			for(int change = 0; change < frame.addresses.length; change++) {
+				int address = frame.addresses[change];
+				int page = address / EmulatorCore.PAGE_SIZE;
+
+				if(!copied[page]) {
+					pages[page] = pages[page].clone();
+					copied[page] = true;
+				}
+
+				pages[page][address % EmulatorCore.PAGE_SIZE] ^=
+					frame.memoryXor[change];
+			}
+
+			for(int row = 0, next = 0; row < FrameBuffer.HEIGHT; row++) {
+				if((frame.rows & (1 << row)) != 0)
+					graphics[row] ^= frame.rowXor[next++];
+			}
+		}
+
+		Snapshot state = registersOf(frames.get(target).registers);
+		state.pages = pages;
+		state.graphics = graphics;
+
+		return state;
+	}
+
+	/*
+		Records the bytes that changed between two snapshots. Only
+		pages that aren't shared between them can differ.
+	*/
+	private void diffMemory(Frame frame, Snapshot from, Snapshot to) {
+		int changes = 0;
+
+		for(int page = 0; page < EmulatorCore.PAGES; page++) {
+			byte[] before = from.pages[page], after = to.pages[page];
+
+			if(before == after)
+				continue;
+
+			for(int offset = 0; offset < EmulatorCore.PAGE_SIZE; offset++) {
+				byte xor = (byte)(before[offset] ^ after[offset]);
+
+				if(xor != 0) {
+					changedAddresses[changes] =
+						(short)(page * EmulatorCore.PAGE_SIZE + offset);
+					changedXor[changes] = xor;
+					changes++;
+				}
+			}
+		}
+
+		if(changes == 0) {
+			frame.addresses = NO_ADDRESSES;
+			frame.memoryXor = NO_BYTES;
+			return;
+		}
+
+		frame.addresses = Arrays.copyOf(changedAddresses, changes);
+		frame.memoryXor = Arrays.copyOf(changedXor, changes);
+		frame.bytes += OBJECT_BYTES * 2 + changes * 3;
+	}
+
+	/*
+		Records the VRAM rows that changed between two snapshots.
+	*/
+	private static void diffRows(Frame frame, Snapshot from, Snapshot to) {
+		int count = 0;
+
+		for(int row = 0; row < FrameBuffer.HEIGHT; row++) {
+			if(from.graphics[row] != to.graphics[row]) {
+				frame.rows |= 1 << row;
+				count++;
+			}
+		}
+
+		if(count == 0) {
+			frame.rowXor = NO_ROWS;
+			return;
+		}
+
+		frame.rowXor = new long[count];
+		for(int row = 0, next = 0; row < FrameBuffer.HEIGHT; row++) {
+			if((frame.rows & (1 << row)) != 0)
+				frame.rowXor[next++] = from.graphics[row] ^ to.graphics[row];
+		}
+
+		frame.bytes += OBJECT_BYTES + count * 8;
+	}
+
+	/*
+		Copies just the registers out of a snapshot.
+	*/
+	private static Snapshot registersOf(Snapshot snap) {
+		Snapshot registers = new Snapshot();
+		registers.V = snap.V;
+		registers.stack = snap.stack;
+		registers.I = snap.I;
+		registers.PC = snap.PC;
+		registers.SP = snap.SP;
+		registers.keys = snap.keys;
+		registers.released = snap.released;
+		registers.waitingForKey = snap.waitingForKey;
+		registers.delay_timer = snap.delay_timer;
+		registers.sound_timer = snap.sound_timer;
+		registers.seed = snap.seed;
+		registers.frame = snap.frame;
+
+		return registers;
+	}
+
+	/*
+		Drops the oldest keyframe and the deltas that depend on it
+		until the buffer fits its budget again. The newest keyframe
+		group is always kept.
+	*/
+	private void trim() {
+		while(bytes > budget) {
+			// Find where the second keyframe starts
+			int next = 1;
+			while(next < frames.size() && frames.get(next).keyframe == null)
+				next++;
+
+			if(next >= frames.size())
+				return;
+
+			List<Frame> oldest = frames.subList(0, next);
+			for(Frame frame : oldest)
+				bytes -= frame.bytes;
+			oldest.clear();
+		}
+	}
+}
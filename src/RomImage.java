@@ -0,0 +1,200 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+	A loaded ROM.
+
+	Images are immutable and cached by the SHA-256 of their contents,
+	so every core running the same ROM shares one image, however many
+	files or paths it was loaded from. The cache only holds images
+	weakly, one that no core uses any more can be collected. Along with the bytes, an image
+	holds the instructions decoded at every address of a freshly
+	loaded machine, which cores copy in instead of decoding again.
+*/
+public final class RomImage {
+	// Memory from 0x200 up is free for the ROM
+	static final int MAX_SIZE = 4096 - 0x200;
+
+	private static final ConcurrentMap<String, CacheEntry> CACHE =
+		new ConcurrentHashMap<String, CacheEntry>();
+
+	// Entries whose images have been collected
+	private static final ReferenceQueue<RomImage> COLLECTED =
+		new ReferenceQueue<RomImage>();
+
+	/*
+		A cached image, which remembers its hash so that it can be
+		taken out of the cache once the image is gone.
+	*/
+	private static final class CacheEntry extends WeakReference<RomImage> {
+		final String hash;
+
+		CacheEntry(RomImage image) {
+			super(image, COLLECTED);
+			hash = image.hash;
+		}
+	}
+
+	private final byte[] data;
+	private final String hash;
+
+	// Instruction at each address of memory right after loading, in
+	// EmulatorCore.PAGE_SIZE pages. Cores share these pages until they
+	// write to them.
+	final Instruction[][] decoded;
+
+	private RomImage(byte[] data, String hash) {
+		this.data = data;
+		this.hash = hash;
+
+		byte[] memory = new byte[4096];
+		System.arraycopy(EmulatorCore.FONT, 0, memory, 0,
+			EmulatorCore.FONT.length);
+		System.arraycopy(data, 0, memory, 0x200, data.length);
+
+		// The last byte of memory can't start an instruction,
+		// fetching there fails as it always did
+		decoded = new Instruction[EmulatorCore.PAGES][EmulatorCore.PAGE_SIZE];
+		for(int address = 0; address < memory.length - 1; address++) {
+			decoded[address / EmulatorCore.PAGE_SIZE]
+				[address % EmulatorCore.PAGE_SIZE] = Instruction.decode(
+				((memory[address] & 0xFF) << 8) | (memory[address + 1] & 0xFF));
+		}
+	}
+
+	/*
+		Reads a ROM file, or returns the cached image of one with the
+		same contents.
+	*/
+	public static RomImage load(String file) throws IOException {
+		return load(Paths.get(file));
+	}
+
+	/*
+		Reads a ROM from any file system, such as the inside of a zip
+		file (see RomSource).
+	*/
+	public static RomImage load(Path path) throws IOException {
+		// Check before reading, a huge file isn't a ROM
+		long size = Files.size(path);
+		if(size > MAX_SIZE)
+			throw new IOException(path + ": " + size + " bytes, a ROM can be " +
+				"at most " + MAX_SIZE);
+
+		return of(Files.readAllBytes(path));
+	}
+
+	/*
+		Returns the image of a ROM already in memory. The array is
+		copied, later changes to it don't affect the image.
+	*/
+	public static RomImage of(byte[] data) {
+		if(data.length > MAX_SIZE)
+			throw new IllegalArgumentException(data.length + " bytes, a ROM " +
+				"can be at most " + MAX_SIZE);
+
+		removeCollected();
+
+		String hash = sha256(data);
+
+		while(true) {
+			CacheEntry entry = CACHE.get(hash);
+			RomImage image = (entry != null) ? entry.get() : null;
+
+			if(image != null)
+				return image;
+
+			image = new RomImage(data.clone(), hash);
+			CacheEntry added = new CacheEntry(image);
+
+			// Two threads can load the same ROM at once, only one
+			// image wins and the other goes round again for it
+			boolean won = (entry == null) ?
+				CACHE.putIfAbsent(hash, added) == null :
+				CACHE.replace(hash, entry, added);
+
+			if(won)
+				return image;
+		}
+	}
+
+	/*
+		Drops cache entries whose images have been collected.
+	*/
+	private static void removeCollected() {
+		Reference<? extends RomImage> collected;
+
+		while((collected = COLLECTED.poll()) != null) {
+			CacheEntry entry = (CacheEntry)collected;
+			CACHE.remove(entry.hash, entry);
+		}
+	}
+
+	/*
+		Forgets every cached image. Cores already running keep theirs.
+	*/
+	public static void clearCache() {
+		CACHE.clear();
+	}
+
+	public int size() {
+		return data.length;
+	}
+
+	/*
+		Copies the ROM into memory at the passed offset.
+	*/
+	void copyTo(byte[] memory, int offset) {
+		System.arraycopy(data, 0, memory, offset, data.length);
+	}
+
+	/*
+		SHA-256 of the contents, in hex.
+	*/
+	public String getHash() {
+		return hash;
+	}
+
+	private static String sha256(byte[] data) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(data);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+
+			for(byte b : digest)
+				hex.append(String.format("%02x", b & 0xFF));
+
+			return hex.toString();
+		} catch(NoSuchAlgorithmException e) {
+			// Every JVM has to provide SHA-256
+			throw new AssertionError(e);
+		}
+	}
+}
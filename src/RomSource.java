@@ -0,0 +1,241 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+
+/*
+	Somewhere ROMs come from:
+
+		roms/			the files directly inside a directory
+		roms/pong		a single ROM
+		roms.zip		every file inside a zip or jar, at any depth
+		classpath:roms		a directory on the classpath, such as one
+					packaged inside c8.jar, at any depth
+
+	Archives aren't extracted, their entries are read in place through
+	a zip FileSystem. Iterating a source walks it lazily, handing out
+	each ROM as it's found, so work on the first ROMs can start before
+	the rest of a large archive has been looked at.
+
+	Paths handed out belong to the source's file system, load them
+	with RomImage.load(Path) before closing the source.
+*/
+public final class RomSource implements Iterable<Path>, Closeable {
+	static final String CLASSPATH = "classpath:";
+
+	private final String location;
+	private final Path root;
+
+	// How far below root to look, 1 for a plain directory
+	private final int depth;
+
+	// File system opened for this source, closed with it
+	private final FileSystem fileSystem;
+
+	private final List<Stream<Path>> walks = new ArrayList<Stream<Path>>();
+
+	private RomSource(String location, Path root, int depth,
+		FileSystem fileSystem)
+	{
+		this.location = location;
+		this.root = root;
+		this.depth = depth;
+		this.fileSystem = fileSystem;
+	}
+
+	public static RomSource open(String location) throws IOException {
+		if(location.startsWith(CLASSPATH))
+			return openClasspath(location);
+
+		Path path = Paths.get(location);
+
+		if(Files.isDirectory(path))
+			return new RomSource(location, path, 1, null);
+
+		if(isArchive(path)) {
+			FileSystem zip = FileSystems.newFileSystem(path, (ClassLoader)null);
+
+			return new RomSource(location, zip.getPath("/"), Integer.MAX_VALUE,
+				zip);
+		}
+
+		if(!Files.exists(path))
+			throw new IOException(location + ": no such file or directory");
+
+		return new RomSource(location, path, 0, null);
+	}
+
+	private static RomSource openClasspath(String location) throws IOException {
+		String name = location.substring(CLASSPATH.length());
+		URL url = RomSource.class.getResource("/" + name);
+
+		if(url == null)
+			throw new IOException(location + ": not on the classpath");
+
+		URI uri;
+		try {
+			uri = url.toURI();
+		} catch(URISyntaxException e) {
+			throw new IOException(location + ": " + e.getMessage());
+		}
+
+		// Inside a jar, the jar's file system has to be open to get a
+		// path into it. Someone else may have opened it already.
+		FileSystem jar = null;
+
+		if(uri.getScheme().equals("jar")) {
+			try {
+				jar = FileSystems.newFileSystem(uri,
+					Collections.<String, Object>emptyMap());
+			} catch(FileSystemAlreadyExistsException e) {
+				jar = null;
+			}
+		}
+
+		return new RomSource(location, Paths.get(uri), Integer.MAX_VALUE, jar);
+	}
+
+	private static boolean isArchive(Path path) {
+		String name = path.getFileName().toString().toLowerCase();
+
+		return Files.isRegularFile(path) &&
+			(name.endsWith(".zip") || name.endsWith(".jar"));
+	}
+
+	/*
+		The ROMs in this source. Plain directories are listed in name
+		order; archives and classpath directories are walked lazily, in
+		whatever order they store their entries.
+	*/
+	public Iterator<Path> iterator() {
+		try {
+			if(depth == 0)
+				return Collections.singletonList(root).iterator();
+
+			if(depth == 1)
+				return listDirectory().iterator();
+
+			Stream<Path> walk = Files.walk(root);
+			walks.add(walk);
+
+			return new RegularFiles(walk.iterator());
+		} catch(IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	private List<Path> listDirectory() throws IOException {
+		List<Path> files = new ArrayList<Path>();
+		DirectoryStream<Path> entries = Files.newDirectoryStream(root);
+
+		try {
+			for(Path entry : entries) {
+				if(Files.isRegularFile(entry))
+					files.add(entry);
+			}
+		} finally {
+			entries.close();
+		}
+
+		Collections.sort(files);
+
+		return files;
+	}
+
+	/*
+		A name for a ROM from this source, for reports. Paths inside
+		an archive or on the classpath are prefixed with the source's
+		location.
+	*/
+	public String nameOf(Path rom) {
+		if(location.startsWith(CLASSPATH)) {
+			String inside = root.relativize(rom).toString();
+
+			return inside.isEmpty() ? location : location + "/" + inside;
+		}
+
+		if(fileSystem == null)
+			return rom.toString();
+
+		String inside = rom.toString();
+		if(inside.startsWith("/"))
+			inside = inside.substring(1);
+
+		return location + "!/" + inside;
+	}
+
+	public void close() throws IOException {
+		for(Stream<Path> walk : walks)
+			walk.close();
+
+		if(fileSystem != null)
+			fileSystem.close();
+	}
+
+	/*
+		Filters a lazy walk down to regular files.
+	*/
+	private static class RegularFiles implements Iterator<Path> {
+		private final Iterator<Path> paths;
+		private Path next;
+
+		RegularFiles(Iterator<Path> paths) {
+			this.paths = paths;
+		}
+
+		public boolean hasNext() {
+			while(next == null && paths.hasNext()) {
+				Path path = paths.next();
+
+				if(Files.isRegularFile(path))
+					next = path;
+			}
+
+			return next != null;
+		}
+
+		public Path next() {
+			if(!hasNext())
+				throw new NoSuchElementException();
+
+			Path path = next;
+			next = null;
+
+			return path;
+		}
+	}
+}
@@ -0,0 +1,186 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+	Frame scheduler.
+
+	Paces the core out in real time at 60 frames a second. Each frame
+	runs a fixed number of instructions (IPF) and ticks the timers
+	once, then the thread parks until the next frame is due. This
+	keeps the delay and sound timers at 60 Hz no matter how fast the
+	instructions are set to run, and leaves the CPU idle between
+	frames.
+
+	When the core is idle, waiting for a key with its timers run out,
+	the thread parks until wake() is called instead, which the input
+	does on every key event.
+*/
+public class Scheduler {
+	static final long FRAME_NANOS = 1000000000L / 60;
+
+	// Instructions per frame, 600 instructions a second
+	static final int DEFAULT_IPF = 10;
+
+	private final EmulatorCore core;
+	private final int ipf;
+	private Runnable frameListener;
+	private volatile boolean running;
+	private volatile Thread thread;
+
+	// Frame statistics
+	private long frames, overruns, overrunNanos, worstOverrunNanos;
+	private long idles;
+
+	// Where overruns and time spent waiting go too, if anywhere
+	private Metrics metrics;
+
+	public Scheduler(EmulatorCore core, int ipf) {
+		this.core = core;
+		this.ipf = ipf;
+	}
+
+	/*
+		Sets something to be run at the end of every frame, such as
+		asking the display to repaint.
+	*/
+	public void setFrameListener(Runnable listener) {
+		frameListener = listener;
+	}
+
+	/*
+		Sets metrics to add overruns and throttling time to, null for
+		none.
+	*/
+	public void setMetrics(Metrics metrics) {
+		this.metrics = metrics;
+	}
+
+	/*
+		Runs frames until stop() is called.
+	*/
+	public void run() {
+		running = true;
+		thread = Thread.currentThread();
+
+		long deadline = System.nanoTime();
+
+		while(running) {
+			core.runFrame(ipf);
+
+			if(frameListener != null)
+				frameListener.run();
+
+			frames++;
+
+			if(core.isIdle()) {
+				// Nothing happens until a key changes. A wake()
+				// between the check and here leaves a permit, so
+				// park returns straight away.
+				idles++;
+				LockSupport.park(this);
+
+				deadline = System.nanoTime();
+				continue;
+			}
+
+			deadline += FRAME_NANOS;
+
+			long remaining = deadline - System.nanoTime();
+
+			if(remaining < 0) {
+				// The frame took longer than it had
+				overruns++;
+				overrunNanos -= remaining;
+				worstOverrunNanos = Math.max(worstOverrunNanos, -remaining);
+
+				if(metrics != null)
+					metrics.overrun(-remaining);
+
+				// Don't try to make up for lost frames by running
+				// a burst of them back to back
+				if(-remaining > FRAME_NANOS)
+					deadline = System.nanoTime();
+			}
+			else {
+				// parkNanos can return early, keep going until
+				// the frame is actually due
+				long parked = remaining;
+
+				while(remaining > 0) {
+					LockSupport.parkNanos(remaining);
+					remaining = deadline - System.nanoTime();
+				}
+
+				if(metrics != null)
+					metrics.throttled(parked - remaining);
+			}
+		}
+	}
+
+	/*
+		Stops the scheduler after the frame in progress.
+	*/
+	public void stop() {
+		running = false;
+		wake();
+	}
+
+	/*
+		Wakes the scheduler if it's parked waiting for a key. Safe to
+		call from any thread at any time.
+	*/
+	public void wake() {
+		Thread waiting = thread;
+
+		if(waiting != null)
+			LockSupport.unpark(waiting);
+	}
+
+	public int getIpf() {
+		return ipf;
+	}
+
+	public long getFrames() {
+		return frames;
+	}
+
+	public long getOverruns() {
+		return overruns;
+	}
+
+	public long getOverrunNanos() {
+		return overrunNanos;
+	}
+
+	public long getWorstOverrunNanos() {
+		return worstOverrunNanos;
+	}
+
+	/*
+		One line summary of the frame statistics.
+	*/
+	public String getReport() {
+		return String.format("%d frames at %d IPF, %d overruns " +
+			"(%.3f ms total, %.3f ms worst), %d waits for a key", frames,
+			ipf, overruns, overrunNanos / 1e6, worstOverrunNanos / 1e6,
+			idles);
+	}
+}
@@ -0,0 +1,56 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/*
+	A saved machine state, taken by EmulatorCore.snapshot() and put
+	back with EmulatorCore.restore().
+
+	Memory is held as EmulatorCore.PAGES pages. A page is never written
+	once it's in a snapshot, so snapshots (and the core) share every
+	page that didn't change between them.
+*/
+public final class Snapshot {
+	byte[][] pages;
+	byte[] V;
+	int[] stack;
+	long[] graphics;
+	short I;
+	int PC;
+	byte SP;
+	int keys, released;
+	boolean waitingForKey;
+	int delay_timer, sound_timer;
+	long seed;
+	long frame;
+
+	Snapshot() {
+	}
+
+	/*
+		Reads a byte of the saved memory.
+	*/
+	public int readMemory(int address) {
+		return pages[address / EmulatorCore.PAGE_SIZE]
+			[address % EmulatorCore.PAGE_SIZE] & 0xFF;
+	}
+
+	public int getPC() {
+		return PC;
+	}
+}
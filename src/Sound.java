@@ -1,4 +1,4 @@
-/* 
+/*
 	Copyright 2013 Charles O.
 	charles.0x4f@gmail.com
 	Github: https://github.com/charles-0x4f
@@ -17,104 +17,85 @@
     along with this program.  If not, see <http://www.gnu.org/licenses/>.
 */
 
-import java.io.File;
-import javax.sound.sampled.AudioInputStream;
-import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.DataLine;
-import javax.sound.sampled.Clip;
+import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.LineUnavailableException;
-import javax.sound.sampled.UnsupportedAudioFileException;
-import java.io.IOException;
+import javax.sound.sampled.SourceDataLine;
 
 /*
 	Sound class.
 
-	Responsible for making sound.
+	Responsible for making sound. The beeper wave is streamed to the
+	sound card, one frame's worth of samples for every frame the core
+	runs, so beeps start and stop exactly on the frame the sound timer
+	says they do.
+
+	Everything happens on the thread running the core, from frame().
 */
-public class Sound implements Runnable {
-	File file;
-	AudioInputStream audioStream;
-	AudioFormat format;
-	DataLine.Info info;
-	Clip clip;
-	boolean on;
+public class Sound implements AudioSink {
+	// Samples kept queued ahead of the sound card, so a frame that
+	// turns up a little late doesn't leave a gap
+	static final int LATENCY = SquareWave.FRAME_SAMPLES * 3;
+
+	static final AudioFormat FORMAT = new AudioFormat(SquareWave.SAMPLE_RATE,
+		16, 1, true, false);
+
+	private final SourceDataLine line;
+	private final SquareWave wave = new SquareWave();
+
+	// 16-bit samples waiting to be written
+	private final byte[] buffer =
+		new byte[(LATENCY + SquareWave.FRAME_SAMPLES) * 2];
+
+	private Sound(SourceDataLine line) {
+		this.line = line;
+	}
 
 	/*
-		Initialize the sound subsystem
+		Initialize the sound subsystem. Falls back to no sound if
+		there's no sound card to play it on.
 	*/
-	public Sound() {
+	public static AudioSink open() {
 		try {
-			file = new File("tone.wav");
-			audioStream = AudioSystem.getAudioInputStream(file);
-			format = audioStream.getFormat();
-			info = new DataLine.Info(Clip.class, format);
-			clip = (Clip)AudioSystem.getLine(info);
-			clip.open(audioStream);
-			on = false;
-		} catch(UnsupportedAudioFileException e) {
-			System.out.println("SOUND FAILURE");
-			e.printStackTrace();
+			SourceDataLine line = AudioSystem.getSourceDataLine(FORMAT);
+			Sound sound = new Sound(line);
+
+			line.open(FORMAT, sound.buffer.length * 2);
+			line.start();
+
+			return sound;
 		} catch(LineUnavailableException e) {
-			System.out.println("SOUND FAILURE");
-			e.printStackTrace();
-		} catch(IOException e) {
-			System.out.println("SOUND FAILURE");
-			e.printStackTrace();
+			System.out.println("SOUND FAILURE: " + e.getMessage());
+		} catch(IllegalArgumentException e) {
+			// No mixer supports the format
+			System.out.println("SOUND FAILURE: " + e.getMessage());
 		}
+
+		return NullAudioSink.INSTANCE;
 	}
 
 	/*
-		Our sound file is only a second long or so and we need to
-		constantly be ready to play/repeat it.
+		Streams out one frame of sound, the beeper on or off for all
+		of it.
 
-		Threading is a solution to this.
+		Never blocks: if the sound card has fallen behind, samples it
+		has no room for are dropped.
 	*/
-	public void run() {
-		do {
-			// If we're supposed to be playing sound
-			if(on) {
-				// If the sound clip isn't running, run it
-				// forever
-				if(!clip.isRunning()) {
-					clip.loop(Clip.LOOP_CONTINUOUSLY);
-				}
-			}
-			// If we're not supposed to be playing sound
-			else {
-				// If the sound clip is running, turn it off
-				if(clip.isRunning()) {
-					clip.stop();
-				}
-			}
-
-			// This is so the Java VM can do other things than
-			// sound pool
-			try {
-				Thread.sleep(100);
-			} catch(InterruptedException ex) {
-				Thread.currentThread().interrupt();
-			}
-		} while(true);
-	}
+	public void frame(boolean beeping) {
+		// Top the queue back up to LATENCY plus this frame. That's a
+		// frame's worth normally, more after a gap and less if the
+		// sound card is running slow.
+		int available = line.available() / 2;
+		int queued = line.getBufferSize() / 2 - available;
+		int samples = LATENCY + SquareWave.FRAME_SAMPLES - queued;
+		samples = Math.max(0, Math.min(samples, Math.min(available,
+			buffer.length / 2)));
 
-	/*
-		Method to turn sound on or off.
-	*/
-	public void setPlaying(boolean trigger) {
-		if(trigger)
-			on = true;
-		else
-			on = false;
+		wave.fill(buffer, 0, samples, beeping);
+		line.write(buffer, 0, samples * 2);
 	}
 
-	/*
-		Method to find out whether the sound is currently playing
-	*/
-	public boolean isPlaying() {
-		if(on)
-			return true;
-
-		return false;
+	public void close() {
+		line.close();
 	}
 }
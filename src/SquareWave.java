@@ -0,0 +1,61 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+/*
+	The beeper's waveform.
+
+	A square wave worked out a sample at a time, as 16-bit signed
+	little-endian mono PCM. The wave carries on from where it left off
+	between calls, silent or not, so beeps never click and the next
+	one picks up in step.
+*/
+final class SquareWave {
+	static final int SAMPLE_RATE = 44100;
+	static final int FREQUENCY = 880;
+
+	// Half of full scale
+	static final short VOLUME = 16384;
+
+	// Samples in one 60 Hz frame
+	static final int FRAME_SAMPLES = SAMPLE_RATE / 60;
+
+	// Where in the wave the next sample falls, in SAMPLE_RATE ths of a
+	// cycle
+	private int phase;
+
+	/*
+		Works out the next count samples into buf, starting at offset
+		(in bytes). Silence if the beeper is off.
+	*/
+	void fill(byte[] buf, int offset, int count, boolean beeping) {
+		for(int sample = 0; sample < count; sample++) {
+			short value = 0;
+
+			if(beeping)
+				value = phase < SAMPLE_RATE / 2 ? VOLUME : (short)-VOLUME;
+
+			buf[offset++] = (byte)value;
+			buf[offset++] = (byte)(value >> 8);
+
+			phase += FREQUENCY;
+			if(phase >= SAMPLE_RATE)
+				phase -= SAMPLE_RATE;
+		}
+	}
+}
@@ -0,0 +1,120 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/*
+	Instruction trace.
+
+	Replaces the old per-instruction console output. Every executed
+	instruction is written as a fixed-size binary record into a ring
+	buffer allocated up front, so tracing never allocates or blocks.
+	The most recent records can be dumped to a file whenever wanted.
+
+	Record layout (big-endian, 24 bytes):
+		PC (2), opcode (2), I (2), V0-VF (16), delay timer (1),
+		sound timer (1)
+*/
+public class Trace {
+	/*
+		Tracing is turned on with -Dc8.trace=true. This is a static
+		final so that with tracing off the JIT drops every guarded
+		call to record() entirely.
+	*/
+	static final boolean ENABLED = Boolean.getBoolean("c8.trace");
+
+	static final int RECORD_SIZE = 24;
+
+	// Number of records kept, the oldest get overwritten
+	static final int DEFAULT_RECORDS = 1 << 16;
+
+	private final byte[] buffer;
+	private final int records;
+
+	// Total records written, including ones since overwritten
+	private long count;
+
+	public Trace() {
+		this(DEFAULT_RECORDS);
+	}
+
+	public Trace(int records) {
+		this.records = records;
+		buffer = new byte[records * RECORD_SIZE];
+	}
+
+	/*
+		Records the state the core is in just before executing an
+		instruction.
+	*/
+	void record(int pc, short opcode, short I, byte[] V, int delay,
+		int sound)
+	{
+		int pos = (int)(count % records) * RECORD_SIZE;
+
+		buffer[pos++] = (byte)(pc >> 8);
+		buffer[pos++] = (byte)pc;
+		buffer[pos++] = (byte)(opcode >> 8);
+		buffer[pos++] = (byte)opcode;
+		buffer[pos++] = (byte)(I >> 8);
+		buffer[pos++] = (byte)I;
+		System.arraycopy(V, 0, buffer, pos, 16);
+		pos += 16;
+		buffer[pos++] = (byte)delay;
+		buffer[pos] = (byte)sound;
+
+		count++;
+	}
+
+	/*
+		Number of records written since the trace was created.
+	*/
+	public long getCount() {
+		return count;
+	}
+
+	/*
+		Writes the buffered records to a file, oldest first.
+	*/
+	public void dump(String file) throws IOException {
+		OutputStream out = new FileOutputStream(file);
+
+		try {
+			dump(out);
+		} finally {
+			out.close();
+		}
+	}
+
+	public void dump(OutputStream out) throws IOException {
+		if(count <= records) {
+			out.write(buffer, 0, (int)count * RECORD_SIZE);
+		}
+		else {
+			// The buffer has wrapped, the oldest record is the
+			// next one to be overwritten
+			int oldest = (int)(count % records) * RECORD_SIZE;
+
+			out.write(buffer, oldest, buffer.length - oldest);
+			out.write(buffer, 0, oldest);
+		}
+	}
+}
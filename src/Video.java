@@ -19,9 +19,7 @@
 
 import java.awt.Color;
 import java.awt.Graphics;
-import java.awt.Graphics2D;
-import java.awt.geom.Line2D;
-import java.awt.geom.Rectangle2D;
+import java.awt.image.BufferedImage;
 import javax.swing.JComponent;
 
 /*
@@ -32,48 +30,97 @@ import javax.swing.JComponent;
 	the graphics engine. In this particular example, Java's primitive
 	drawing is used as the graphics engine. By changing this class,
 	one can use SDL, OpenGL, etc. by just retrieving the video RAM.
+
+	The display is kept in a 64x32 image that gets scaled up when
+	painted. Only the rows the core changed during a frame are copied
+	into it, and nothing is repainted for frames that changed nothing.
 */
 public class Video extends JComponent
 {
 	Color color, background;
-	protected byte[][] VRam;
+	protected FrameBuffer VRam;
+
+	// The display at its original resolution
+	private final BufferedImage image;
+
+	// Rows handed over by the emulation thread but not yet drawn
+	private final long[] pending = new long[FrameBuffer.HEIGHT];
+	private int pendingRows;
 
-	public Video(byte[][] VideoRAM)
+	// Scratch space for converting a row to pixels
+	private final int[] pixels = new int[FrameBuffer.WIDTH];
+
+	public Video(FrameBuffer VideoRAM)
 	{
 		VRam = VideoRAM;
 		// Setup colors, background white, sprites black
 		color = Color.darkGray;
 		background = Color.BLACK;
+
+		image = new BufferedImage(FrameBuffer.WIDTH, FrameBuffer.HEIGHT,
+			BufferedImage.TYPE_INT_RGB);
+
+		// Draw everything on the first paint
+		VRam.takeDirtyRows();
+		VRam.copyRows(pending);
+		pendingRows = -1;
+	}
+
+	/*
+		Called by the emulation thread at the end of each frame.
+
+		Picks up the rows that changed and asks Swing for a repaint,
+		if anything changed at all.
+	*/
+	public void frameComplete()
+	{
+		int dirty = VRam.takeDirtyRows();
+
+		if(dirty == 0)
+			return;
+
+		synchronized(pending) {
+			for(int y = 0; y < FrameBuffer.HEIGHT; y++) {
+				if((dirty & (1 << y)) != 0)
+					pending[y] = VRam.getRow(y);
+			}
+
+			pendingRows |= dirty;
+		}
+
+		repaint();
 	}
 
-	public void paintComponent(Graphics G)
+	public void paintComponent(Graphics g)
 	{
-		Graphics2D g = (Graphics2D) G;
-		g.setColor(color);
-
-		Rectangle2D rect;
-
-		// x and y are for our 4x resolution drawing (onto Java frame)
-		// xOriginal and yOriginal are for getting the pixel from
-		// the original VRAM. This is relatively ugly.
-		for(int x = 0, xOriginal = 0; x < 256; x += 4, xOriginal++)
-		{
-			for(int y = 0, yOriginal = 0; y < 128; y += 4, yOriginal++)
-			{
-				// If this pixel is set(on), draw a 4*4 rectangle
-				if(VRam[xOriginal][yOriginal] == 1) {
-					// Setup rectangle
-					rect = new Rectangle2D.Double((double)x,
-						(double)y, (double)4, (double)4);
-
-					// The rectangle will be hollow without this
-					g.fill(rect);
-
-					// Draw to the amazement of all
-					g.draw(rect);
-				}
+		synchronized(pending) {
+			// Bring the image up to date with the changed rows
+			for(int y = 0; y < FrameBuffer.HEIGHT; y++) {
+				if((pendingRows & (1 << y)) != 0)
+					drawRow(y, pending[y]);
 			}
+
+			pendingRows = 0;
 		}
 
+		// Draw at 4x resolution (onto Java frame)
+		g.drawImage(image, 0, 0, FrameBuffer.WIDTH * 4,
+			FrameBuffer.HEIGHT * 4, null);
+	}
+
+	/*
+		Copies one packed VRAM row into the image.
+	*/
+	private void drawRow(int y, long row)
+	{
+		int on = color.getRGB();
+		int off = background.getRGB();
+
+		// The leftmost pixel is the sign bit
+		for(int x = 0; x < FrameBuffer.WIDTH; x++, row <<= 1)
+			pixels[x] = (row < 0) ? on : off;
+
+		image.setRGB(0, y, FrameBuffer.WIDTH, 1, pixels, 0,
+			FrameBuffer.WIDTH);
 	}
 }
@@ -0,0 +1,131 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/*
+	Audio sink that writes the beeper to a WAV file instead of playing
+	it, exactly SquareWave.FRAME_SAMPLES samples per emulated frame.
+	Sample n of the file belongs to frame n / FRAME_SAMPLES, however
+	fast or slow the core ran, which is what checking sound timing
+	without a sound card needs.
+
+	The sizes in the header aren't known until the end, so they're
+	written as 0 and filled in by close().
+*/
+public class WavAudioSink implements AudioSink {
+	private static final int HEADER_BYTES = 44;
+
+	private final String file;
+	private final OutputStream out;
+	private final SquareWave wave = new SquareWave();
+	private final byte[] buffer = new byte[SquareWave.FRAME_SAMPLES * 2];
+	private long dataBytes;
+
+	// First write that failed, writing stops there
+	private IOException error;
+
+	public WavAudioSink(String file) throws IOException {
+		this.file = file;
+
+		out = new BufferedOutputStream(new FileOutputStream(file));
+
+		try {
+			out.write(header(0));
+		} catch(IOException e) {
+			out.close();
+			throw e;
+		}
+	}
+
+	public void frame(boolean beeping) {
+		if(error != null)
+			return;
+
+		wave.fill(buffer, 0, SquareWave.FRAME_SAMPLES, beeping);
+
+		try {
+			out.write(buffer);
+			dataBytes += buffer.length;
+		} catch(IOException e) {
+			error = e;
+		}
+	}
+
+	/*
+		Finishes the file, filling in the header's sizes.
+	*/
+	public void close() throws IOException {
+		out.close();
+
+		if(error != null)
+			throw error;
+
+		RandomAccessFile wav = new RandomAccessFile(file, "rw");
+
+		try {
+			wav.write(header(dataBytes));
+		} finally {
+			wav.close();
+		}
+	}
+
+	/*
+		Canonical 44-byte header for 16-bit mono PCM.
+	*/
+	private static byte[] header(long dataBytes) {
+		byte[] header = new byte[HEADER_BYTES];
+		int rate = SquareWave.SAMPLE_RATE;
+
+		putTag(header, 0, "RIFF");
+		putInt(header, 4, (int)(36 + dataBytes));
+		putTag(header, 8, "WAVE");
+		putTag(header, 12, "fmt ");
+		putInt(header, 16, 16);		// fmt chunk size
+		putShort(header, 20, 1);	// PCM
+		putShort(header, 22, 1);	// mono
+		putInt(header, 24, rate);
+		putInt(header, 28, rate * 2);	// bytes per second
+		putShort(header, 32, 2);	// bytes per sample
+		putShort(header, 34, 16);	// bits per sample
+		putTag(header, 36, "data");
+		putInt(header, 40, (int)dataBytes);
+
+		return header;
+	}
+
+	private static void putTag(byte[] buf, int pos, String tag) {
+		for(int i = 0; i < 4; i++)
+			buf[pos + i] = (byte)tag.charAt(i);
+	}
+
+	private static void putShort(byte[] buf, int pos, int value) {
+		buf[pos] = (byte)value;
+		buf[pos + 1] = (byte)(value >> 8);
+	}
+
+	private static void putInt(byte[] buf, int pos, int value) {
+		putShort(buf, pos, value);
+		putShort(buf, pos + 2, value >> 16);
+	}
+}
@@ -0,0 +1,112 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+/*
+	Checks BatchEngine lanes against lone cores running the same ROM
+	with the same seed.
+*/
+public class BatchEngineTest {
+	static final int LANES = 64;
+
+	/*
+		Each pass writes a random number into the low byte of the
+		instruction at 0x21A and picks one of LD, ADD, LD Vx,Vy and
+		SNE for the instruction at 0x21C by writing its high byte,
+		then draws the digit it ended up with.
+
+		200	RND V0, #03
+		202	LD V5, V0
+		204	LD I, #21B
+		206	LD [I], V0	low byte of 21A
+		208	SHL V0		four times, to 20E
+		210	ADD V0, #60
+		212	LD I, #21C
+		214	LD [I], V0	high byte of 21C
+		216	LD V3, #00
+		218	LD V3, #00
+		21A	LD V1, #00	rewritten
+		21C	LD V0, #50	rewritten
+		21E	ADD V1, #01	skipped by SNE
+		220	LD F, V1
+		222	LD V2, #08
+		224	DRW V5, V2, 5
+		226	JP #200
+	*/
+	static final byte[] SELF_MODIFYING = bytes(new int[] {
+		0xC0, 0x03, 0x85, 0x00, 0xA2, 0x1B, 0xF0, 0x55,
+		0x80, 0x0E, 0x80, 0x0E, 0x80, 0x0E, 0x80, 0x0E,
+		0x70, 0x60, 0xA2, 0x1C, 0xF0, 0x55, 0x63, 0x00,
+		0x63, 0x00, 0x61, 0x00, 0x60, 0x50, 0x71, 0x01,
+		0xF1, 0x29, 0x62, 0x08, 0xD5, 0x25, 0x12, 0x00
+	});
+
+	@Test
+	public void lanesDivergingOnSelfModifiedCodeMatchCores() {
+		RomImage image = RomImage.of(SELF_MODIFYING);
+		BatchEngine engine = new BatchEngine(image, LANES);
+		EmulatorCore[] cores = new EmulatorCore[LANES];
+
+		for(int lane = 0; lane < LANES; lane++) {
+			engine.setSeed(lane, lane);
+			cores[lane] = new EmulatorCore(image);
+			cores[lane].setSeed(lane);
+		}
+
+		for(int frame = 0; frame < 60; frame++) {
+			engine.runFrame(37);
+
+			for(int lane = 0; lane < LANES; lane++) {
+				cores[lane].runFrame(37);
+				assertSame(frame, lane, engine.snapshot(lane), cores[lane]);
+			}
+		}
+	}
+
+	static void assertSame(int frame, int lane, Snapshot snap, EmulatorCore core) {
+		String where = "frame " + frame + ", lane " + lane;
+		Snapshot expected = core.snapshot();
+
+		assertEquals(expected.PC, snap.PC, where + ": PC");
+		assertEquals(expected.I, snap.I, where + ": I");
+		assertEquals(expected.SP, snap.SP, where + ": SP");
+		assertArrayEquals(expected.V, snap.V, where + ": V");
+		assertArrayEquals(expected.stack, snap.stack, where + ": stack");
+		assertArrayEquals(expected.graphics, snap.graphics, where + ": graphics");
+
+		for(int page = 0; page < EmulatorCore.PAGES; page++) {
+			assertArrayEquals(expected.pages[page], snap.pages[page],
+				where + ": memory page " + page);
+		}
+	}
+
+	static byte[] bytes(int[] values) {
+		byte[] result = new byte[values.length];
+
+		for(int i = 0; i < values.length; i++)
+			result[i] = (byte)values[i];
+
+		return result;
+	}
+}
@@ -0,0 +1,86 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.function.Executable;
+import org.junit.jupiter.api.io.TempDir;
+
+/*
+	Checks that recordings play back the keys they were made with, and
+	only against the ROM they were made with.
+*/
+public class InputReplayTest {
+	@TempDir
+	Path dir;
+
+	@Test
+	public void replaysOnlyAgainstTheRecordedRom() throws IOException {
+		RomImage image = RomImage.of(BatchEngineTest.SELF_MODIFYING);
+		String file = dir.resolve("keys.c8r").toString();
+
+		// Holds a different key every 5 frames
+		KeySource keys = new KeySource() {
+			public int poll(long frame) {
+				return 1 << ((frame / 5) & 0xF);
+			}
+		};
+
+		EmulatorCore core = new EmulatorCore(image);
+		InputRecorder recorder = new InputRecorder(file, "self-modifying",
+			image, 37, keys, core.getVRam());
+		core.setKeySource(recorder);
+
+		for(int frame = 0; frame < 60; frame++)
+			core.runFrame(37);
+		long display = core.getVRam().hash();
+
+		// The recording ends at the last frame polled
+		core.runFrame(37);
+		recorder.close();
+
+		final InputReplay replay = new InputReplay(file);
+		assertEquals("self-modifying", replay.rom);
+		assertEquals(37, replay.ipf);
+		assertEquals(60, replay.frames);
+		assertEquals(display, replay.hash);
+
+		for(long frame = 0; frame < 60; frame++)
+			assertEquals(keys.poll(frame), replay.poll(frame), "frame " + frame);
+
+		replay.checkRom(image);
+
+		byte[] changed = BatchEngineTest.SELF_MODIFYING.clone();
+		changed[1] ^= 1;
+		final RomImage other = RomImage.of(changed);
+
+		assertThrows(IOException.class, new Executable() {
+			public void execute() throws Throwable {
+				replay.checkRom(other);
+			}
+		});
+	}
+}
@@ -0,0 +1,105 @@
+/*
+	Copyright 2013 Charles O.
+	charles.0x4f@gmail.com
+	Github: https://github.com/charles-0x4f
+
+    This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+
+    You should have received a copy of the GNU General Public License
+    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+
+/*
+	Checks cores running compiled blocks against cores that interpret
+	every instruction.
+*/
+public class RecompilerTest {
+	/*
+		Presses a different handful of keys every few frames, so ROMs
+		get past their title screens and skips on keys go both ways.
+	*/
+	static final KeySource KEYS = new KeySource() {
+		public int poll(long frame) {
+			long hash = (frame / 7 + 3) * 0x9E3779B97F4A7C15L;
+			hash ^= hash >>> 29;
+
+			return (int)(hash & (hash >>> 16)) & 0xFFFF;
+		}
+	};
+
+	@Test
+	public void selfModifyingCodeMatchesInterpreter() {
+		RomImage image = RomImage.of(BatchEngineTest.SELF_MODIFYING);
+
+		for(int seed = 0; seed < 8; seed++) {
+			EmulatorCore compiled = new EmulatorCore(image);
+			EmulatorCore interpreted = new EmulatorCore(image);
+
+			compiled.setSeed(seed);
+			interpreted.setSeed(seed);
+
+			compare(compiled, interpreted, 60, 37);
+		}
+	}
+
+	@Test
+	public void bundledRomsMatchInterpreter() throws Exception {
+		for(Path rom : RomSource.open("roms")) {
+			RomImage image = RomImage.load(rom);
+			EmulatorCore compiled = new EmulatorCore(image);
+			EmulatorCore interpreted = new EmulatorCore(image);
+
+			compiled.setKeySource(KEYS);
+			interpreted.setKeySource(KEYS);
+
+			compare(compiled, interpreted, 300, 31);
+		}
+	}
+
+	/*
+		Runs both cores frame by frame, the first one recompiling,
+		and checks they agree after every frame.
+	*/
+	static void compare(EmulatorCore compiled, EmulatorCore interpreted,
+		int frames, int ipf)
+	{
+		Metrics compiledMetrics = new Metrics();
+		Metrics interpretedMetrics = new Metrics();
+
+		compiled.setPrecompiled(false);
+		interpreted.setPrecompiled(false);
+		compiled.setMetrics(compiledMetrics);
+		interpreted.setMetrics(interpretedMetrics);
+		compiled.setRecompiling(true);
+
+		for(int frame = 0; frame < frames; frame++) {
+			compiled.runFrame(ipf);
+			interpreted.runFrame(ipf);
+
+			BatchEngineTest.assertSame(frame, 0, compiled.snapshot(),
+				interpreted);
+			assertEquals(interpreted.Opcode, compiled.Opcode,
+				"frame " + frame + ": Opcode");
+			assertArrayEquals(interpretedMetrics.getOpcodeFamilies(),
+				compiledMetrics.getOpcodeFamilies(),
+				"frame " + frame + ": opcode families");
+		}
+	}
+}